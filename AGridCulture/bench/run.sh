@@ -0,0 +1,22 @@
+#!/bin/bash
+# Build and run the JMH benchmarks, leaving the results in results/<commit>.json so that builds can
+# be compared. The jars go in lib/ (or $JMH_LIB): jmh-core, jmh-generator-annprocess, jopt-simple
+# and commons-math3, all for JMH, since dl24 and the game need nothing outside the JDK. Any
+# arguments are passed to JMH, e.g. "-p size=200 getHarvest".
+set -e
+here="$(cd "$(dirname "$0")" && pwd)"
+root="$here/../.."
+lib="${JMH_LIB:-$here/lib}"
+build="$here/build"
+
+rm -rf "$build"
+mkdir -p "$build/classes" "$here/results"
+javac -d "$build/classes" -cp "$lib/*" \
+    $(find "$root/dl24java/src/dl24" -maxdepth 1 -name '*.java') \
+    "$root"/AGridCulture/src/*.java "$here"/src/*.java
+
+commit="$(git -C "$root" rev-parse --short HEAD 2>/dev/null || date +%Y%m%d-%H%M%S)"
+java -cp "$build/classes:$lib/*" org.openjdk.jmh.Main \
+    -rf json -rff "$here/results/$commit.json" \
+    -jvmArgsAppend "-Dagridculture.logDir=$build" \
+    "$@"
@@ -0,0 +1,234 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dl24.Client;
+import dl24.Transport;
+
+/**
+ * The parts of a turn that grow with the board. Each trial reads a world generated by
+ * GridSimulator through the same code as a real game, then draws square fences of ours on it, ten
+ * cells a side every 25 cells, for the harvest and area searches to find.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AGridCultureBenchmark
+{
+    private static final char OURS = 'A';
+    private static final int FENCE = 10;
+
+    @Param({"50", "200", "500"})
+    int size;
+
+    @Param({"4", "16"})
+    int workers;
+
+    // The fraction of the board that is hills. With none, distances have a closed form.
+    @Param({"0", "0.05", "0.2"})
+    double hills;
+
+    private Client client;
+    private AGridCulture culture;
+    // A second copy of the game for the benchmarks that would upset the others: reading the map
+    // again, which wipes out the fences, and moving workers without telling the server.
+    private AGridCulture scratch;
+    private boolean postRemoved = false;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception
+    {
+        final GridSimulator simulator = new GridSimulator(null, size, workers, hills, 1, 1, 0, true);
+        final Transport.Factory server = simulator.inMemory();
+        client = new Client("bench", () -> new CachingTransport(server.open()), null);
+        // The hero strategy, which is the one that uses moveWorkers.
+        culture = new AGridCulture(client, -1);
+        culture.discardSpecialLog();
+        culture.readWorld(false);
+        client.setCommandLimit(0);
+        culture.readEnemies();
+        scratch = new AGridCulture(new Client("bench", () -> new CachingTransport(server.open()), null), -1);
+        scratch.discardSpecialLog();
+        scratch.readWorld(false);
+        for (int x = 5; x + FENCE < size; x += 25) {
+            for (int y = 5; y + FENCE < size; y += 25) {
+                for (int i = 0; i < FENCE; i++) {
+                    culture.setMap(x + i, y, OURS);
+                    culture.setMap(x + i, y + FENCE - 1, OURS);
+                    culture.setMap(x, y + i, OURS);
+                    culture.setMap(x + FENCE - 1, y + i, OURS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move every worker on a cell, sweeping the board so that the distance cache rarely has the
+     * field already, and search from there.
+     */
+    @Benchmark
+    public void recomputeDistances()
+    {
+        for (AGridCulture.Worker worker : scratch.workers) {
+            worker.x = (worker.x + 1) % size;
+            if (worker.x == 0) {
+                worker.y = (worker.y + 1) % size;
+            }
+            worker.recomputeDistances();
+        }
+    }
+
+    @Benchmark
+    public Object getHarvest()
+        throws Exception
+    {
+        return culture.getHarvest(5, 5);
+    }
+
+    /**
+     * Take a post out of the first fence or put it back, then find the areas, so that each call
+     * has a change for the area index to take in.
+     */
+    @Benchmark
+    public Object getAreasToScore()
+    {
+        culture.setMap(5 + FENCE / 2, 5, postRemoved ? OURS : '.');
+        postRemoved = !postRemoved;
+        return culture.getAreasToScore();
+    }
+
+    /**
+     * A turn's moves, after the enemy positions have been read as they are at the start of one,
+     * sent and settled as at the end of a turn so that nothing is left queued for the next call.
+     */
+    @Benchmark
+    public void moveWorkers()
+        throws Exception
+    {
+        culture.readEnemies();
+        culture.moveWorkers();
+        client.flushCommands();
+        culture.resolveQueuedCommands();
+    }
+
+    @Benchmark
+    public void determineHivemindLocation()
+        throws Exception
+    {
+        culture.determineHivemindLocation();
+    }
+
+    @Benchmark
+    public void showMap()
+        throws Exception
+    {
+        scratch.readMap();
+    }
+
+    /**
+     * Passes each distinct command to the simulator once and plays its reply back every time
+     * after that. The world doesn't change between calls, so the replies are the same, and
+     * commands like SHOW_MAP then time our reading of the reply rather than the printing of it.
+     */
+    static class CachingTransport
+        implements Transport
+    {
+        private final Transport server;
+        private final Map<String, byte[]> replies = new HashMap<>();
+        private final StringBuilder command = new StringBuilder();
+        private byte[] pending = new byte[1 << 16];
+        private int fill = 0;
+        private int read = 0;
+
+        CachingTransport(Transport server)
+            throws IOException
+        {
+            this.server = server;
+            queue(readAll());
+        }
+
+        private byte[] readAll()
+            throws IOException
+        {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = server.read(buffer, 0, buffer.length)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toByteArray();
+        }
+
+        private void queue(byte[] reply)
+        {
+            if (read == fill) {
+                read = fill = 0;
+            }
+            if (fill + reply.length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(2 * pending.length, fill + reply.length));
+            }
+            System.arraycopy(reply, 0, pending, fill, reply.length);
+            fill += reply.length;
+        }
+
+        public int read(byte[] buffer, int offset, int length)
+        {
+            if (read == fill) {
+                return -1;
+            }
+            final int n = Math.min(length, fill - read);
+            System.arraycopy(pending, read, buffer, offset, n);
+            read += n;
+            return n;
+        }
+
+        public void write(byte[] buffer, int offset, int length)
+            throws IOException
+        {
+            for (int i = offset; i < offset + length; i++) {
+                command.append((char) buffer[i]);
+                if (buffer[i] == '\n') {
+                    final String line = command.toString();
+                    command.setLength(0);
+                    byte[] reply = replies.get(line);
+                    if (reply == null) {
+                        final byte[] bytes = new byte[line.length()];
+                        for (int j = 0; j < bytes.length; j++) {
+                            bytes[j] = (byte) line.charAt(j);
+                        }
+                        server.write(bytes, 0, bytes.length);
+                        reply = readAll();
+                        replies.put(line, reply);
+                    }
+                    queue(reply);
+                }
+            }
+        }
+
+        public void close()
+            throws IOException
+        {
+            server.close();
+        }
+    }
+}
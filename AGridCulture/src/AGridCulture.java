@@ -1,19 +1,33 @@
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayDeque;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Random;
-import java.util.Scanner;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
 
 import dl24.Client;
+import dl24.CommandClass;
+import dl24.EventLoop;
+import dl24.LineReader;
+import dl24.Metrics;
 import dl24.ProtocolException;
+import dl24.ReconnectedException;
+import dl24.Reply;
+import dl24.Threads;
+import dl24.TurnScheduler;
 
 public class AGridCulture
 {
@@ -25,6 +39,7 @@ public class AGridCulture
     };
 
     private final Client client;
+    private final TurnScheduler scheduler;
 
     private Random random = new Random();
 
@@ -34,10 +49,16 @@ public class AGridCulture
     private char C;
     private int lastU = -1;
 
-    final int[] qx = new int[250000];
-    final int[] qy = new int[250000];
     
     private PrintWriter specialWriter;
+    // Our state as of the end of the last turn, for picking the game up again after a restart.
+    private final Snapshot snapshot;
+    // A restart takes seconds; a snapshot older than this is from some earlier run.
+    private static final long MAX_SNAPSHOT_AGE_MILLIS = 60000;
+    // Which game the snapshot is of: the server we play on, empty when not a real one, and the
+    // world as DESCRIBE_WORLD put it, which includes our colour.
+    private String server = "";
+    private String world = "";
     
     private int wrap(int k)
     {
@@ -47,14 +68,14 @@ public class AGridCulture
         
     }
 
-    private class Worker
+    class Worker
     {
         int x, y, id;
         char[] storage;
         int numStored = 0;
         boolean allocatedToMove;
-        int[][] distance;
-        int[][] dirX, dirY;
+        // How far each cell is from us, and which way to step to get there.
+        DistanceEngine.Field field;
         int nextX, nextY;
         boolean special = false;
         int tx1, ty1, tx2, ty2, txl;
@@ -66,20 +87,67 @@ public class AGridCulture
         boolean primaryCoop;
         int hiveX = -1, hiveY = -1;
         
+        // Replies to commands queued for this worker during the current turn, applied by
+        // resolveQueuedCommands once the batch has been flushed.
+        Reply moveReply;
+        Reply putReply;
+        char putReplaced;
+        int putExpiry;
+        int putDumpIndex;
+        
         Worker(int id, int x, int y)
         {
             this.id = id;
             this.x = x;
             this.y = y;
             storage = new char[G];
-            distance = new int[A][A];
-            dirX = new int[A][A];
-            dirY = new int[A][A];
+        }
+
+        int dist(int tx, int ty)
+        {
+            return field.distance(cell(tx, ty));
+        }
+
+        int stepX(int tx, int ty)
+        {
+            return field.stepX(cell(tx, ty));
+        }
+
+        int stepY(int tx, int ty)
+        {
+            return field.stepY(cell(tx, ty));
         }
         void addToStorage(char color)
         {
             storage[numStored++] = color;
         }
+
+        /**
+         * Queue a PUT of one of our markers where we stand. The map shows it straight away, so that
+         * the rest of the turn plans around it; resolveQueuedCommands takes what it replaced into
+         * storage, or puts the map back if the PUT fails.
+         */
+        void queueClaim()
+            throws IOException
+        {
+            final int here = cell(x, y);
+            putReply = client.queuePut(id, C);
+            putReplaced = map[here];
+            putExpiry = markerExpiry.get(here);
+            putDumpIndex = -1;
+            setMap(x, y, C);
+            markerExpiry.set(here, F);
+        }
+
+        /**
+         * Queue a PUT of the marker in the given storage slot; it leaves storage once it goes through.
+         */
+        void queueDump(int index)
+            throws IOException
+        {
+            putReply = client.queuePut(id, storage[index]);
+            putDumpIndex = index;
+        }
         
         void makeSpecialCooperator(Worker cooperator)
         {
@@ -102,12 +170,12 @@ public class AGridCulture
             for (int i = 0; i < workers.size(); i++) {
                 Worker worker = workers.get(i);
                 if (worker.id == id) break;
-                if (worker.distance[x][y] < 10) {
+                if (worker.dist(x, y) < 10) {
                     txl = -1;
                     do {
                         lastTx = wrap(x + random.nextInt(10));
                         lastTy = wrap(y + random.nextInt(10));
-                    } while (map[lastTx][lastTy] == '#' || distance[lastTx][lastTy] < 10);
+                    } while (map[cell(lastTx, lastTy)] == '#' || dist(lastTx, lastTy) < 10);
                     specialWriter.println("Worker " + id + " relocating to " + lastTx + " " + lastTy + " to get away from " + worker.id + " at " + worker.x + " " + worker.y);
                     return;
                 }
@@ -117,10 +185,10 @@ public class AGridCulture
             int neg = 0, best = -1, bestNeg = -1, bestPos = -1;
             while (true) {
                 neg++;
-                boolean ok = map[wrap(x - neg)][wrap(y - neg)] != '#';
+                boolean ok = map[cell(wrap(x - neg), wrap(y - neg))] != '#';
                 for (int i = 0; i < neg && ok; i++) {
-                    ok &= map[wrap(x - neg)][wrap(y - i)] != '#';
-                    ok &= map[wrap(x - i)][wrap(y - neg)] != '#';
+                    ok &= map[cell(wrap(x - neg), wrap(y - i))] != '#';
+                    ok &= map[cell(wrap(x - i), wrap(y - neg))] != '#';
                 }
                 if (!ok) {
                     neg--;
@@ -144,10 +212,10 @@ public class AGridCulture
                         break;
                     }
                     pos++;
-                    ok = map[wrap(x + pos)][wrap(y + pos)] != '#';
+                    ok = map[cell(wrap(x + pos), wrap(y + pos))] != '#';
                     for (int i = -neg; i < pos && ok; i++) {
-                        ok &= map[wrap(x + pos)][wrap(y + i)] != '#';
-                        ok &= map[wrap(x + i)][wrap(y + pos)] != '#';
+                        ok &= map[cell(wrap(x + pos), wrap(y + i))] != '#';
+                        ok &= map[cell(wrap(x + i), wrap(y + pos))] != '#';
                     }
                     if (!ok) {
                         break;
@@ -159,10 +227,10 @@ public class AGridCulture
             neg = 0;
             while (true) {
                 neg++;
-                boolean ok = map[wrap(x - neg)][wrap(y + neg)] != '#';
+                boolean ok = map[cell(wrap(x - neg), wrap(y + neg))] != '#';
                 for (int i = 0; i < neg && ok; i++) {
-                    ok &= map[wrap(x - neg)][wrap(y + i)] != '#';
-                    ok &= map[wrap(x - i)][wrap(y + neg)] != '#';
+                    ok &= map[cell(wrap(x - neg), wrap(y + i))] != '#';
+                    ok &= map[cell(wrap(x - i), wrap(y + neg))] != '#';
                 }
                 if (!ok) {
                     neg--;
@@ -187,10 +255,10 @@ public class AGridCulture
                     }
                     
                     pos++;
-                    ok = map[wrap(x + pos)][wrap(y - pos)] != '#';
+                    ok = map[cell(wrap(x + pos), wrap(y - pos))] != '#';
                     for (int i = -neg; i < pos && ok; i++) {
-                        ok &= map[wrap(x + pos)][wrap(y - i)] != '#';
-                        ok &= map[wrap(x + i)][wrap(y - pos)] != '#';
+                        ok &= map[cell(wrap(x + pos), wrap(y - i))] != '#';
+                        ok &= map[cell(wrap(x + i), wrap(y - pos))] != '#';
                     }
                     if (!ok) {
                         break;
@@ -236,8 +304,8 @@ public class AGridCulture
         
         boolean isSuitable(int tx, int ty, boolean nonEdge)
         {
-            char ch = map[tx][ty];
-            return (ch != C && ch != '#' && nWorkers[tx][ty] == 0 && (ch == '.' || ((nonEdge && numStored < G - 3) || (!nonEdge && numStored < G))));            
+            char ch = map[cell(tx, ty)];
+            return (ch != C && ch != '#' && nWorkers[cell(tx, ty)] == 0 && (ch == '.' || ((nonEdge && numStored < G - 3) || (!nonEdge && numStored < G))));            
         }
         
         void specialMove(List<Worker> workers)
@@ -263,12 +331,12 @@ public class AGridCulture
                     }
                     else {
                         // Otherwise, move toward the new target.
-                        if (canExecuteCommand()) {
+                        if (client.canExecute(CommandClass.MOVE)) {
                             specialWriter.println("Moving from " + x + " " + y + " towards new area at " + lastTx + " " + lastTy);
                             specialWriter.flush();
-                            client.writeCommand("MOVE", id, dirX[lastTx][lastTy], dirY[lastTx][lastTy]);
-                            nextX = wrap(x + dirX[lastTx][lastTy]);
-                            nextY = wrap(y + dirY[lastTx][lastTy]);
+                            moveReply = client.queueMove(id, stepX(lastTx, lastTy), stepY(lastTx, lastTy));
+                            nextX = wrap(x + stepX(lastTx, lastTy));
+                            nextY = wrap(y + stepY(lastTx, lastTy));
                             specialWriter.println("Next is " + nextX + " " + nextY);
                             specialWriter.flush();
                         }
@@ -281,7 +349,7 @@ public class AGridCulture
                     do {
                         lastTx = wrap(x + random.nextInt(20) - 10);
                         lastTy = wrap(y + random.nextInt(20) - 10);
-                    } while (map[lastTx][lastTy] == '#');
+                    } while (map[cell(lastTx, lastTy)] == '#');
                     specialWriter.println("Targeting " + lastTx + " " + lastTy + " for better pastures");
                     specialWriter.flush();
                 }
@@ -293,7 +361,7 @@ public class AGridCulture
                 boolean evilLurks = false;
                 for (int i = 0; i < enemyWorkers.size(); i++) {
                     EnemyWorker worker = enemyWorkers.get(i);
-                    if (distance[worker.x][worker.y] < txl) {
+                    if (dist(worker.x, worker.y) < txl) {
                         evilLurks = true;
                         break;
                     }
@@ -305,44 +373,24 @@ public class AGridCulture
                         // away from them and close to us.
                         specialWriter.println("We're under attack!");
                         specialWriter.flush();
-                        int qt = 0;
-                        int qh = 0;
-                        for (int i = 0; i < A; i++) {
-                            Arrays.fill(evilDist[i], -1);
-                        }
+                        Arrays.fill(evilDist, -1);
+                        int numSeeds = 0;
                         for (int i = 0; i < enemyWorkers.size(); i++) {
-                            int ex = enemyWorkers.get(i).x;
-                            int ey = enemyWorkers.get(i).y;
-                            if (evilDist[ex][ey] < 0) {
-                                qx[qh] = ex;
-                                qy[qh] = ey;
-                                evilDist[ex][ey] = 0;
-                                qh++;
+                            int e = cell(enemyWorkers.get(i).x, enemyWorkers.get(i).y);
+                            if (evilDist[e] < 0) {
+                                grid.queue[numSeeds++] = e;
+                                evilDist[e] = 0;
                             }
                         }
+                        final int numReached = spreadDistances(evilDist, numSeeds);
                         int close = -1, closeX = -1, closeY = -1;
-                        while (qt < qh) {
-                            int curx = qx[qt];
-                            int cury = qy[qt];
-                            qt++;
-                            for (int c = 0; c < 4; c++) {
-                                int nx = curx + CX[c];
-                                int ny = cury + CY[c];
-                                if (nx < 0) nx += A;
-                                if (nx >= A) nx -= A;
-                                if (ny < 0) ny += A;
-                                if (ny >= A) ny -= A;
-                                if (evilDist[nx][ny] < 0) {
-                                    evilDist[nx][ny] = evilDist[curx][cury] + 1;
-                                    qx[qh] = nx;
-                                    qy[qh] = ny;
-                                    qh++;
-                                    if ((evilDist[nx][ny] > 2 * txl) && (close < 0 || distance[nx][ny] < close)) {
-                                        close = distance[nx][ny];
-                                        closeX = nx;
-                                        closeY = ny;
-                                    }
-                                }
+                        for (int i = numSeeds; i < numReached; i++) {
+                            // Cells come off the queue in the order they were reached.
+                            final int next = grid.queue[i];
+                            if ((evilDist[next] > 2 * txl) && (close < 0 || field.distance(next) < close)) {
+                                close = field.distance(next);
+                                closeX = grid.x(next);
+                                closeY = grid.y(next);
                             }
                         }
                         
@@ -388,13 +436,13 @@ public class AGridCulture
                 if (x == bestX && y == bestY) {
                     
                 }
-                best = distance[bestX][bestY];
+                best = dist(bestX, bestY);
             }
             else {
                 int bestSpecial = -1;
                 // Find the cell on our square border that is closest to us and which needs to be marked.
                 if (lastTx != -1 && lastTy != -1 && isSuitable(lastTx, lastTy, lastTx != wrap(tx1) && lastTx != wrap(tx1 + txl) && lastTy != wrap(ty1) && lastTy != wrap(ty1 + txl)) && (x != lastTx || y != lastTy)) {
-                    best = distance[lastTx][lastTy];
+                    best = dist(lastTx, lastTy);
                     bestX = lastTx;
                     bestY = lastTy;
                 }
@@ -408,11 +456,11 @@ public class AGridCulture
                         txl = cooperator.txl;
                         if (txl < 0) {
                             // Looks like our co-op partner is being relocated... let's follow them.
-                            if ((x != cooperator.x || y != cooperator.y) && canExecuteCommand()) {
+                            if ((x != cooperator.x || y != cooperator.y) && client.canExecute(CommandClass.MOVE)) {
                                 specialWriter.println("Worker " + id + " following cooperator from " + x + " " + y + " to " + cooperator.x + " " + cooperator.y);
-                                client.writeCommand("MOVE", id, dirX[cooperator.x][cooperator.y], dirY[cooperator.x][cooperator.y]);
-                                nextX = wrap(x + dirX[cooperator.x][cooperator.y]);
-                                nextY = wrap(y + dirY[cooperator.x][cooperator.y]);
+                                moveReply = client.queueMove(id, stepX(cooperator.x, cooperator.y), stepY(cooperator.x, cooperator.y));
+                                nextX = wrap(x + stepX(cooperator.x, cooperator.y));
+                                nextY = wrap(y + stepY(cooperator.x, cooperator.y));
                                 specialWriter.println("Next is " + nextX + " " + nextY);
                                 return;
                             }
@@ -422,7 +470,7 @@ public class AGridCulture
                         int tx = wrap(tx1);
                         int ty = wrap(ty1 + txl - i);
                         if (!(cooperative || primaryCoop) && isSuitable(tx, ty, false)) {
-                            int d = distance[tx][ty];
+                            int d = dist(tx, ty);
                             if (best == -1 || d < best) {
                                 best = d;
                                 bestX = tx;
@@ -434,7 +482,7 @@ public class AGridCulture
                         tx = wrap(tx2);
                         ty = wrap(ty1 + i);
                         if ((!cooperative || !primaryCoop) && isSuitable(tx, ty, false)) {
-                            int d = distance[tx][ty];
+                            int d = dist(tx, ty);
                             if (best == -1 || d < best) {
                                 best = d;
                                 bestX = tx;
@@ -446,7 +494,7 @@ public class AGridCulture
                         tx = wrap(tx1 + i);
                         ty = wrap(ty1);
                         if ((!cooperative || primaryCoop) && isSuitable(tx, ty, false)) {
-                            int d = distance[tx][ty];
+                            int d = dist(tx, ty);
                             if (best == -1 || d < best) {
                                 best = d;
                                 bestX = tx;
@@ -458,7 +506,7 @@ public class AGridCulture
                         tx = wrap(tx1 + txl - i);
                         ty = wrap(ty2);
                         if ((!cooperative || !primaryCoop) && isSuitable(tx, ty, false)) {
-                            int d = distance[tx][ty];
+                            int d = dist(tx, ty);
                             if (best == -1 || d < best) {
                                 best = d;
                                 bestX = tx;
@@ -475,7 +523,7 @@ public class AGridCulture
                 for (int j = 0; j <= txl; j++) {
                     int tx = wrap(tx1 + i);
                     int ty = wrap(ty1 + j);
-                    char ch = map[tx][ty];
+                    char ch = map[cell(tx, ty)];
                     if (ch == C) {
                         specialWriter.print('C');
                     }
@@ -501,17 +549,17 @@ public class AGridCulture
                 }
                 specialWriter.println();
             }
-            if (best > 0 && canExecuteCommand()) {
+            if (best > 0 && client.canExecute(CommandClass.MOVE)) {
                 specialWriter.println("Closest point to " + id + " at " + x + " " + y + " is " + bestX + " " + bestY + " with distance of " + best);
-                client.writeCommand("MOVE", id, dirX[bestX][bestY], dirY[bestX][bestY]);
-                nextX = wrap(x + dirX[bestX][bestY]);
-                nextY = wrap(y + dirY[bestX][bestY]);
+                moveReply = client.queueMove(id, stepX(bestX, bestY), stepY(bestX, bestY));
+                nextX = wrap(x + stepX(bestX, bestY));
+                nextY = wrap(y + stepY(bestX, bestY));
                 specialWriter.println("Next is " + nextX + " " + nextY);
                 lastTx = bestX; lastTy = bestY;
             }
             else {
                 lastTx = -1; lastTy = -1;
-                if (canExecuteCommand()) {
+                if (client.canExecute(CommandClass.MOVE)) {
                     // Pick the closest valid cell within our special area.
                     best = -1;
                     for (int i = 0; i <= txl; i++) {
@@ -519,7 +567,7 @@ public class AGridCulture
                             int tx = wrap(tx1 + i);
                             int ty = wrap(ty1 + j);
                             if ((!cooperative || ((i + j <= txl) == primaryCoop)) && isSuitable(tx, ty, true)) {
-                                int d = distance[tx][ty];
+                                int d = dist(tx, ty);
                                 if (best == -1 || d < best) {
                                     best = d;
                                     bestX = tx;
@@ -530,9 +578,9 @@ public class AGridCulture
                     }
                     if (best > 0) {
                         specialWriter.println("Closest arbitrary point to " + x + " " + y + " is " + bestX + " " + bestY + " with distance of " + best);
-                        client.writeCommand("MOVE", id, dirX[bestX][bestY], dirY[bestX][bestY]);
-                        nextX = wrap(x + dirX[bestX][bestY]);
-                        nextY = wrap(y + dirY[bestX][bestY]);
+                        moveReply = client.queueMove(id, stepX(bestX, bestY), stepY(bestX, bestY));
+                        nextX = wrap(x + stepX(bestX, bestY));
+                        nextY = wrap(y + stepY(bestX, bestY));
                         specialWriter.println("Next is " + nextX + " " + nextY);
                     }
                     else {
@@ -549,58 +597,15 @@ public class AGridCulture
 
         void recomputeDistances()
         {
-            for (int i = 0; i < A; i++) {
-                Arrays.fill(distance[i], -1);
-                Arrays.fill(dirX[i],  0);
-                Arrays.fill(dirY[i],  0);
-            }
-            distance[x][y] = 0;
-            dirX[x][y] = 0;
-            dirY[x][y] = 0;
-            qx[0] = x;
-            qy[0] = y;
-            int qh = 1;
-            int qt = 0;
-            while (qt < qh) {
-                int curx = qx[qt];
-                int cury = qy[qt];
-                qt++;
-                for (int c = 0; c < 4; c++) {
-                    int nx = curx + CX[c];
-                    int ny = cury + CY[c];
-                    if (nx < 0) nx += A;
-                    if (nx >= A) nx -= A;
-                    if (ny < 0) ny += A;
-                    if (ny >= A) ny -= A;
-                    if (map[nx][ny] == '#' && !B) {
-                        // No hills allowed.
-                        continue;
-                    }
-                    if (distance[nx][ny] == -1) {
-                        distance[nx][ny] = distance[curx][cury] + 1;
-                        if (curx == x && cury == y) {
-                            dirX[nx][ny] = CX[c];
-                            dirY[nx][ny] = CY[c];
-                        }
-                        else {
-                            dirX[nx][ny] = dirX[curx][cury];
-                            dirY[nx][ny] = dirY[curx][cury];
-                        }
-                        qx[qh] = nx;
-                        qy[qh] = ny;
-                        qh++;
-                    }
-                }
-            }
-            
-            // Sanity check
-            for (int i = 0; i < A; i++) {
-                for (int j = 0; j < A; j++) {
-                    if (dirX[i][j] == 0 && dirY[i][j] == 0) {
-                        _assert(distance[i][j] == -1 || (i == x && j == y));
-                    }
-                }
-            }
+            field = distances.moveSource(field, cell(x, y));
+        }
+
+        /**
+         * Note that we have moved, leaving any search this needs to DistanceEngine.searchPending.
+         */
+        void recomputeDistancesLater()
+        {
+            field = distances.moveSourceLater(field, cell(x, y));
         }
     }
     
@@ -616,21 +621,36 @@ public class AGridCulture
         }
     }
     
-    private char[][] map;
-    private int[][] markerExpiry;
-    private int[][] nWorkers;
-    private boolean[][] claimedForMove;
-    private boolean[][] harvestCell;
-    private boolean[][] harvestPost;
-    private boolean[][] scored;
-    private int[][] evilDist;
-    private int[][] workerDist;
-    private int[][][] bigSquare;
-    private int[][][] bigSquareW;
+    // The board, and the grid's arrays under their own names; see useGrid.
+    private Grid grid;
+    private char[] map;
+    private ExpiryWheel markerExpiry;
+    private int[] nWorkers;
+    private boolean[] claimedForMove;
+    private boolean[] harvestCell;
+    private boolean[] harvestPost;
+    private boolean[] scored;
+    private int[] evilDist;
+    // Distance fields for the workers on the current map.
+    private DistanceEngine distances;
+    // The areas our fences enclose, kept up to date as the map changes.
+    private AreaIndex areaIndex;
     private int turns;
     private int hiveX, hiveY, hiveL;
+    // Turn for which the hive location was already worked out during the previous wait.
+    private int hivePrecomputedTurn = -1;
+    // How long working out the hive took last time, so we only try it during a wait that has room.
+    private double hiveSeconds;
+
+    // When the phase of the turn being timed began, and the running totals that are reported to
+    // the metrics as they grow from one turn to the next.
+    private long phaseStart;
+    private long cellsSearched;
+    private long allocatedBytes;
     
-    private List<Worker> workers = new ArrayList<>();
+    List<Worker> workers = new ArrayList<>();
+    // SCOREs queued this turn, checked once the batch has been sent.
+    private List<Reply> scoreReplies = new ArrayList<>();
     private List<EnemyWorker> enemyWorkers = new ArrayList<>();
     
     int index;
@@ -638,8 +658,12 @@ public class AGridCulture
         throws Exception
     {
         this.client = client;
+        this.scheduler = new TurnScheduler(client);
         this.index = index;
-        specialWriter = new PrintWriter(new FileWriter("/Users/carl/contests/deadline24/2017/final/special." + index));
+        // Set -Dagridculture.logDir to write the special workers' log somewhere else.
+        final String logDir = System.getProperty("agridculture.logDir", "/Users/carl/contests/deadline24/2017/final");
+        specialWriter = new PrintWriter(new FileWriter(new File(logDir, "special." + index)));
+        snapshot = new Snapshot(new File(logDir, "snapshot." + index));
         
         // Run some basic tests on harvesting.
         initMap(new String[] {
@@ -796,16 +820,72 @@ public class AGridCulture
         );
     }
 
+    /**
+     * Throw away the special workers' log from now on, for when writing the file would only get in
+     * the way of timing the code around it.
+     */
+    void discardSpecialLog()
+    {
+        specialWriter.close();
+        specialWriter = new PrintWriter(new Writer() {
+            public void write(char[] buffer, int offset, int length)
+            {
+            }
+
+            public void flush()
+            {
+            }
+
+            public void close()
+            {
+            }
+        });
+    }
+
+    /**
+     * Switch to a grid for a board of side A, keeping the current one if it is already the right size.
+     */
+    private void useGrid()
+    {
+        grid = Grid.forSize(grid, A);
+        map = grid.map;
+        markerExpiry = grid.markerExpiry;
+        nWorkers = grid.nWorkers;
+        claimedForMove = grid.claimedForMove;
+        harvestCell = grid.harvestCell;
+        harvestPost = grid.harvestPost;
+        scored = grid.scored;
+        evilDist = grid.evilDist;
+        if (areaIndex == null || !areaIndex.isFor(grid)) {
+            areaIndex = new AreaIndex(grid);
+        }
+        else {
+            areaIndex.invalidate();
+        }
+    }
+
+    /**
+     * Write a cell of the map once it is in play, keeping the area index informed.
+     */
+    void setMap(int x, int y, char ch)
+    {
+        final int cell = cell(x, y);
+        map[cell] = ch;
+        areaIndex.changed(cell);
+    }
+
+    private int cell(int x, int y)
+    {
+        return grid.cell(x, y);
+    }
+
     private void initMap(String[] s)
     {
         A = s.length;
-        map = new char[A][A];
-        harvestPost = new boolean[A][A];
-        harvestCell = new boolean[A][A];
-        scored = new boolean[A][A];
+        useGrid();
         for (int i = 0; i < A; i++) {
             for (int j = 0; j < A; j++) {
-                map[j][i] = s[i].charAt(j);
+                map[cell(j, i)] = s[i].charAt(j);
             }
         }
     }
@@ -917,134 +997,53 @@ public class AGridCulture
 
     public void run()
         throws Exception
+    {
+        run(false);
+    }
+
+    /**
+     * @param resume pick up the game in progress after the client has reconnected: skip the initial
+     *               wait, keep the turn count and hive, and reuse what we know about our workers
+     */
+    public void run(boolean resume)
+        throws Exception
     {
         try {
-            // First wait for the current turn to end.
-            client.doWait();
+            if (!resume) {
+                // First wait for the current turn to end.
+                scheduler.awaitTurn();
+            }
 
+            boolean resuming = resume;
             while (true) {
-                lastU = -1;
-                   
-                // Get basic description of the world.
-                client.writeCommand("DESCRIBE_WORLD");
-                Scanner sc = new Scanner(client.readLine());
-                A = sc.nextInt();
-                B = (sc.nextInt() == 1);
-                C = sc.next().charAt(0);
-                D = sc.nextDouble();
-                E = sc.nextInt();
-                F = sc.nextInt();
-                G = sc.nextInt();
-                H = (sc.nextInt() == 1);
-                Z = sc.nextDouble();
-                W = sc.nextDouble();
-                T = sc.nextDouble();
-                Sw = sc.nextDouble();
-                Sh = sc.nextDouble();
-                Ss = sc.nextDouble();
-                N = sc.nextDouble();
-                M = sc.nextDouble();
-                I = sc.nextInt();
-                L = sc.nextInt();
-                K = sc.nextDouble();
-
-                // Wait until we can see the map.
-                //
-                // XXX move into proxy?
-                while (true) {
-                    try {
-                        client.writeCommand("SHOW_MAP");
-                        
-                        // If we got here, then we succeeded.
-                        break;
-                    }
-                    catch (ProtocolException e) {
-                        // Pause briefly and try again.
-                        Thread.sleep(100);
-                    }
-                }
-                
-                map = new char[A][A];
-                markerExpiry = new int[A][A];
-                nWorkers = new int[A][A];
-                claimedForMove = new boolean[A][A];
-                harvestCell = new boolean[A][A];
-                harvestPost = new boolean[A][A];
-                scored = new boolean[A][A];
-                evilDist = new int[A][A];
-                workerDist = new int[A][A];
-                bigSquare = new int[A][A][A];
-                bigSquareW = new int[A][A][A];
-                client.readLine(); // map size
-                for (int i = 0; i < A; i++) {
-                    String line = client.readLine();
-                    for (int j = 0; j < A; j++) {
-                        map[j][i] = line.charAt(j);
-                    }
-                }
-                for (int i = 0; i < A; i++) {
-                    sc = new Scanner(client.readLine());
-                    for (int j = 0; j < A; j++) {
-                        if (sc.hasNextInt()) {
-                            markerExpiry[j][i] = sc.nextInt();
-                        }
-                        else {
-                            markerExpiry[j][i] = -1;
-                        }
-                    }
-                }
-                // Get a handle on where our workers are.
-                try {
-                    client.writeCommand("LIST_MY_WORKERS");
-                    int num = Integer.parseInt(client.readLine());
-                    workers.clear();
-                    int numSpecial = num;//Math.max(num / 2, num - 2);
-                    for (int i = 0; i < num; i++) {
-                        sc = new Scanner(client.readLine());
-                        int id = sc.nextInt();
-                        int x = sc.nextInt();
-                        int y = sc.nextInt();
-                        Worker worker = new Worker(id, x, y);
-                        int numStored = sc.nextInt();
-                        for (int j = 0; j < numStored; j++) {
-                            char Cm = sc.next().charAt(0);
-                            int Dm = sc.nextInt();
-                            for (int k = 0; k < Dm; k++) {
-                                worker.addToStorage(Cm);
-                            }
-                        }
-                        worker.recomputeDistances();
-                        workers.add(worker);
-                        if (i < numSpecial) {
-                            // Make this a special worker.
-                            if ((i % 2) == 0) {
-                                worker.makeSpecial(workers);
-                            }
-                            else {
-                                // Make this a cooperator.
-                                worker.makeSpecialCooperator(workers.get(i - 1));
-                            }
-                        }
-                    }
-                }
-                catch (ProtocolException e) {
-                    // Should not really happen so early on...
-                    throw e;
+                if (!resuming) {
+                    lastU = -1;
                 }
+                   
+                readWorld(resuming);
 
                 // Now begin the main game loop.
                 while (true) {
                     // See how many turns are remaining.
+                    phaseStart = System.nanoTime();
                     client.writeCommand("TIME_TO_END");
-                    sc = new Scanner(client.readLine());
+                    LineReader sc = client.readTokens();
                     int U = sc.nextInt();
                     int V = sc.nextInt();
                                         
                     // Once we have completed the game then we go around again. We determine game-end
-                    // by U changing by more than we expect.
-                    if (lastU != -1 && U != lastU - 1) {
+                    // by U changing by more than we expect. After a reconnect we may have missed some
+                    // turns, so then only a jump up counts.
+                    final boolean newGame = resuming ? U > lastU : U != lastU - 1;
+                    if (resuming && lastU != -1 && !newGame) {
+                        // Count the turns that went by without us.
+                        turns += Math.max(lastU - 1 - U, 0);
+                    }
+                    resuming = false;
+                    if (lastU != -1 && newGame) {
                         turns = 0;
                         hiveX = hiveY = hiveL = -1;
+                        hivePrecomputedTurn = -1;
                         break;
                     }
                     else {
@@ -1052,68 +1051,63 @@ public class AGridCulture
                         lastU = U;
                     }
                     
-                    // Figure out where the enemies are.
-                    client.writeCommand("LIST_ENEMY_WORKERS");
-                    int numEnemies = Integer.parseInt(client.readLine());
-                    enemyWorkers.clear();
-                    for (int i = 0; i < numEnemies; i++) {
-                        sc = new Scanner(client.readLine());
-                        char color = sc.next().charAt(0);
-                        int x = sc.nextInt();
-                        int y = sc.nextInt();
-                        enemyWorkers.add(new EnemyWorker(color, x, y));                        
-                    }
-
-                    // Make a note of how many workers there are in every grid cell.
-                    for (int i = 0; i < A; i++) {
-                        Arrays.fill(nWorkers[i], 0);
-                        Arrays.fill(claimedForMove[i], false);
-                    }
-                    for (int i = 0; i < workers.size(); i++) {
-                        Worker worker = workers.get(i);
-                        nWorkers[worker.x][worker.y]++;
-                    }
-                    for (int i = 0; i < enemyWorkers.size(); i++) {
-                        EnemyWorker worker = enemyWorkers.get(i);
-                        nWorkers[worker.x][worker.y]++;
-                    }
+                    readEnemies();
+                    endPhase("parse");
                     
                     runStrategy();
 
-                    // Update the distance cache for workers that have moved.
+                    // Update the distance cache for workers that have moved. Nothing reads it until
+                    // the next turn, so the searches are done, side by side, while we wait for that.
                     for (int i = 0; i < workers.size(); i++) {
-                        Worker worker = workers.get(i);
+                        final Worker worker = workers.get(i);
                         if (worker.allocatedToMove) {
                             worker.x = worker.nextX;
                             worker.y = worker.nextY;
-                            worker.recomputeDistances();
+                            worker.recomputeDistancesLater();
                         }
                     }
+                    scheduler.duringWait(() -> {
+                        final long start = System.nanoTime();
+                        distances.searchPending();
+                        client.logPhaseTime("distances", (System.nanoTime() - start) / 1e9);
+                    });
+                    if (index != -1 && hiveX != -1 && ((turns + 1) % 1000) == 0) {
+                        // The next turn picks a new hive; get it out of the way now if there is time.
+                        // It sees this turn's enemy positions rather than the next one's.
+                        final int nextTurn = turns + 1;
+                        scheduler.duringWait(() -> {
+                            if (hiveSeconds > 0 && scheduler.remainingSeconds() > hiveSeconds) {
+                                determineHivemindLocation();
+                                hivePrecomputedTurn = nextTurn;
+                            }
+                        });
+                    }
 
                     // Wait until the end of the turn.
-                    System.err.println("Commands left: " + (L - client.getCommandsUsed()));
-                    client.doWait();
+                    System.err.println("Commands left: " + client.getCommandsLeft());
+                    scheduler.awaitTurn();
+                    endPhase("wait");
                     
                     // Determine any new markers that were placed in the previous turn.
                     client.writeCommand("SHOW_HISTORY");
-                    sc = new Scanner(client.readLine());
+                    sc = client.readTokens();
                     int Md = sc.nextInt();
                     for (int i = 0; i < Md; i++) {
                         int x = sc.nextInt();
                         int y = sc.nextInt();
-                        map[x][y] = '.';
-                        markerExpiry[x][y] = -1;
+                        setMap(x, y, '.');
+                        markerExpiry.clear(cell(x, y));
                     }
-                    sc = new Scanner(client.readLine());
+                    sc = client.readTokens();
                     int Mc = sc.nextInt();
                     for (int i = 0; i < Mc; i++) {
                         int x = sc.nextInt();
                         int y = sc.nextInt();
-                        char c = sc.next().charAt(0);
-                        map[x][y] = c;
-                        markerExpiry[x][y] = F;
+                        char c = sc.nextChar();
+                        setMap(x, y, c);
+                        markerExpiry.set(cell(x, y), F);
                     }
-                    sc = new Scanner(client.readLine());
+                    sc = client.readTokens();
                     int Sc = sc.nextInt();
                     Harvest[] harvests = new Harvest[Sc];
                     for (int i = 0; i < Sc; i++) {
@@ -1136,25 +1130,25 @@ public class AGridCulture
                         for (int j = 0; j < harvest.perimeterX.length; j++) {
                             int hx = harvest.perimeterX[j];
                             int hy = harvest.perimeterY[j];
-                            map[hx][hy] = '.';
-                            markerExpiry[hx][hy] = -1;
+                            setMap(hx, hy, '.');
+                            markerExpiry.clear(cell(hx, hy));
                         }
                         if (H) {
                             for (int j = 0; j < harvest.internalX.length; j++) {
                                 int hx = harvest.internalX[j];
                                 int hy = harvest.internalY[j];
-                                map[hx][hy] = '.';
-                                markerExpiry[hx][hy] = -1;
+                                setMap(hx, hy, '.');
+                                markerExpiry.clear(cell(hx, hy));
                             }
                         }
                     }
                     
                     // Get last score from the round.
                     client.writeCommand("LAST_SCORE");
-                    sc = new Scanner(client.readLine());
+                    sc = client.readTokens();
                     int Slast = sc.nextInt();
                     for (int i = 0; i < Slast; i++) {
-                        char color = sc.next().charAt(0);
+                        char color = sc.nextChar();
                         double S = sc.nextDouble();
                         if (color == C) {
                             client.logPrometheusSummary("SCORE", S);
@@ -1163,18 +1157,16 @@ public class AGridCulture
                     }
 
                     // Update marker expiries.
-                    for (int i = 0; i < A; i++) {
-                        for (int j = 0; j < A; j++) {
-                            if (markerExpiry[j][i] >= 0) {
-                                markerExpiry[j][i] -= 1;
-                                if (markerExpiry[j][i] < 0) {
-                                    map[j][i] = '.';
-                                }
-                            }
-                        }
+                    final int[] expired = grid.queue;
+                    final int numExpired = markerExpiry.tick(expired);
+                    for (int i = 0; i < numExpired; i++) {
+                        setMap(grid.x(expired[i]), grid.y(expired[i]), '.');
                     }
+                    endPhase("history");
+                    countTurnTotals();
                     
                     turns++;
+                    saveSnapshot();
                 }
             }
         }
@@ -1183,6 +1175,189 @@ public class AGridCulture
         }
     }
     
+    /**
+     * Read the world, the map and our workers, as at the start of a game.
+     *
+     * @param resuming keep what we know about workers we already had, and their distances if the map
+     *                 allows
+     */
+    void readWorld(boolean resuming)
+        throws Exception
+    {
+        // Get basic description of the world.
+        final String previousWorld = world;
+        client.writeCommand("DESCRIBE_WORLD");
+        LineReader sc = client.readTokens();
+        world = sc.lineString();
+        A = sc.nextInt();
+        B = (sc.nextInt() == 1);
+        C = sc.nextChar();
+        D = sc.nextDouble();
+        E = sc.nextInt();
+        F = sc.nextInt();
+        G = sc.nextInt();
+        H = (sc.nextInt() == 1);
+        Z = sc.nextDouble();
+        W = sc.nextDouble();
+        T = sc.nextDouble();
+        Sw = sc.nextDouble();
+        Sh = sc.nextDouble();
+        Ss = sc.nextDouble();
+        N = sc.nextDouble();
+        M = sc.nextDouble();
+        I = sc.nextInt();
+        L = sc.nextInt();
+        K = sc.nextDouble();
+        client.setCommandLimit(L);
+        if (resuming && !world.equals(previousWorld)) {
+            // Not the game we were playing, so nothing we remember about it applies.
+            resuming = false;
+            lastU = -1;
+            turns = 0;
+            hiveX = hiveY = hiveL = -1;
+            hivePrecomputedTurn = -1;
+        }
+
+        readMap();
+        if (!resuming || distances == null || !distances.isFor(grid, B)) {
+            distances = new DistanceEngine(grid, B);
+            cellsSearched = 0;
+            if (distances.isClosedForm()) {
+                System.err.println("No hills in the way; using torus distances");
+            }
+        }
+
+        // Get a handle on where our workers are.
+        try {
+            client.writeCommand("LIST_MY_WORKERS");
+            int num = client.readTokens().nextInt();
+            final List<Worker> previous = resuming ? new ArrayList<>(workers) : Collections.emptyList();
+            workers.clear();
+            int numSpecial = num;//Math.max(num / 2, num - 2);
+            for (int i = 0; i < num; i++) {
+                sc = client.readTokens();
+                int id = sc.nextInt();
+                int x = sc.nextInt();
+                int y = sc.nextInt();
+                // Workers we already knew before a reconnect keep their roles and, if they
+                // haven't moved since, their distance fields.
+                Worker worker = findWorker(previous, id);
+                final boolean known = worker != null;
+                if (known) {
+                    worker.x = x;
+                    worker.y = y;
+                    worker.numStored = 0;
+                    worker.allocatedToMove = false;
+                    worker.moveReply = null;
+                    worker.putReply = null;
+                    // Its claim may have gone through since we last heard.
+                    if (worker.hiveX != -1 && map[cell(worker.hiveX, worker.hiveY)] == C) {
+                        worker.hiveX = worker.hiveY = -1;
+                    }
+                }
+                else {
+                    worker = new Worker(id, x, y);
+                }
+                int numStored = sc.nextInt();
+                for (int j = 0; j < numStored; j++) {
+                    char Cm = sc.nextChar();
+                    int Dm = sc.nextInt();
+                    for (int k = 0; k < Dm; k++) {
+                        worker.addToStorage(Cm);
+                    }
+                }
+                worker.recomputeDistances();
+                workers.add(worker);
+                if (i < numSpecial && !known) {
+                    // Make this a special worker.
+                    if ((i % 2) == 0) {
+                        worker.makeSpecial(workers);
+                    }
+                    else {
+                        // Make this a cooperator.
+                        worker.makeSpecialCooperator(workers.get(i - 1));
+                    }
+                }
+            }
+        }
+        catch (ProtocolException e) {
+            // Should not really happen so early on...
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for SHOW_MAP to succeed and read the map and marker expiries from it.
+     */
+    void readMap()
+        throws Exception
+    {
+        // Wait until we can see the map.
+        //
+        // XXX move into proxy?
+        while (true) {
+            try {
+                client.writeCommand("SHOW_MAP");
+                
+                // If we got here, then we succeeded.
+                break;
+            }
+            catch (ProtocolException e) {
+                // Pause briefly and try again.
+                Thread.sleep(100);
+            }
+        }
+        
+        useGrid();
+        client.readTokens(); // map size
+        for (int i = 0; i < A; i++) {
+            LineReader line = client.readTokens();
+            for (int j = 0; j < A; j++) {
+                map[cell(j, i)] = line.charAt(j);
+            }
+        }
+        markerExpiry.clearAll();
+        for (int i = 0; i < A; i++) {
+            LineReader sc = client.readTokens();
+            for (int j = 0; j < A; j++) {
+                if (sc.hasNextInt()) {
+                    markerExpiry.set(cell(j, i), sc.nextInt());
+                }
+            }
+        }
+    }
+
+    /**
+     * Read where the enemy workers are, and count the workers in every cell for the new turn.
+     */
+    void readEnemies()
+        throws Exception
+    {
+        // Figure out where the enemies are.
+        client.writeCommand("LIST_ENEMY_WORKERS");
+        int numEnemies = client.readTokens().nextInt();
+        enemyWorkers.clear();
+        for (int i = 0; i < numEnemies; i++) {
+            LineReader sc = client.readTokens();
+            char color = sc.nextChar();
+            int x = sc.nextInt();
+            int y = sc.nextInt();
+            enemyWorkers.add(new EnemyWorker(color, x, y));
+        }
+
+        // Make a note of how many workers there are in every grid cell.
+        Arrays.fill(nWorkers, 0);
+        Arrays.fill(claimedForMove, false);
+        for (int i = 0; i < workers.size(); i++) {
+            Worker worker = workers.get(i);
+            nWorkers[cell(worker.x, worker.y)]++;
+        }
+        for (int i = 0; i < enemyWorkers.size(); i++) {
+            EnemyWorker worker = enemyWorkers.get(i);
+            nWorkers[cell(worker.x, worker.y)]++;
+        }
+    }
+
     void runStrategy()
         throws Exception
     {
@@ -1192,52 +1367,118 @@ public class AGridCulture
         else {
             runHiveMindStrategy();
         }
+        
+        // Send whatever is still queued in one go and apply the commands that the server accepted.
+        client.flushCommands();
+        resolveQueuedCommands();
+        endPhase("commands");
     }
     
-    class GoalWorker implements Comparable<GoalWorker>
+    /**
+     * Record the time since the last phase ended as the time taken by this one.
+     */
+    private void endPhase(String phase)
     {
-        int x, y, w, d;
+        final long now = System.nanoTime();
+        client.logPhaseTime(phase, (now - phaseStart) / 1e9);
+        phaseStart = now;
+    }
 
-        public GoalWorker(int x, int y, int w, int d)
-        {
-            this.x = x; this.y = y; this.w = w; this.d = d;
+    /**
+     * Report the cells searched for distances and the bytes allocated by this thread since the
+     * last turn. The searches run in a pool are in the first but not the second.
+     */
+    private void countTurnTotals()
+    {
+        final long cells = distances.getCellsSearched();
+        client.countSearchedCells(cells - cellsSearched);
+        cellsSearched = cells;
+
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            final long bytes = ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+            if (allocatedBytes > 0) {
+                client.countAllocatedBytes(bytes - allocatedBytes);
+            }
+            allocatedBytes = bytes;
         }
-        
-        public int compareTo(GoalWorker that)
-        {
-            return Integer.compare(d,  that.d);
+    }
+
+    void resolveQueuedCommands()
+    {
+        // A failed SCORE is as fatal as it was when they were sent one at a time, but a dropped one
+        // just waits for a later turn.
+        ProtocolException scoreError = null;
+        for (int i = 0; i < scoreReplies.size(); i++) {
+            Reply reply = scoreReplies.get(i);
+            if (!reply.isOk() && !reply.isDropped() && scoreError == null) {
+                scoreError = reply.getError();
+            }
+        }
+        scoreReplies.clear();
+
+        for (int i = 0; i < workers.size(); i++) {
+            Worker worker = workers.get(i);
+            if (worker.moveReply != null) {
+                if (!worker.moveReply.isOk()) {
+                    System.err.println("Move of worker " + worker.id + " failed: " + worker.moveReply.getError().getMessage());
+                    worker.nextX = worker.x;
+                    worker.nextY = worker.y;
+                }
+                worker.moveReply = null;
+            }
+            if (worker.putReply != null) {
+                if (worker.putDumpIndex < 0) {
+                    // Our marker went on the map when the PUT was queued.
+                    if (!worker.putReply.isOk()) {
+                        // Probably another team beat us to it.
+                        setMap(worker.x, worker.y, worker.putReplaced);
+                        markerExpiry.set(cell(worker.x, worker.y), worker.putExpiry);
+                    }
+                    else if (worker.putReplaced != '.') {
+                        worker.addToStorage(worker.putReplaced);
+                        System.err.println("Replaced marker of team " + worker.putReplaced + " at " + worker.x + " " + worker.y);
+                    }
+                }
+                else if (worker.putReply.isOk()) {
+                    int index = worker.putDumpIndex;
+                    System.err.println("Dumped marker " + worker.storage[index] + " at " + worker.x + " " + worker.y);
+                    worker.numStored--;
+                    if (worker.numStored > 0) {
+                        worker.storage[index] = worker.storage[worker.numStored];
+                    }
+                }
+                worker.putReply = null;
+            }
+        }
+        if (scoreError != null) {
+            throw scoreError;
         }
     }
+    
     void runHiveMindStrategy()
         throws Exception
     {
-        if (hiveX == -1 || (turns % 1000) == 0) {
+        if ((hiveX == -1 || (turns % 1000) == 0) && hivePrecomputedTurn != turns) {
             determineHivemindLocation();
+            endPhase("hive_location");
         }
         
         // Execute claim operations.
         for (int i = 0; i < workers.size(); i++) {
             Worker w = workers.get(i);
-            final char ch = map[w.x][w.y];
+            final char ch = map[cell(w.x, w.y)];
             if (w.hiveX != -1 && w.x == w.hiveX && w.y == w.hiveY) {
                 _assert(ch != C);
-                if (nWorkers[w.hiveX][w.hiveY] == 1 && canExecuteCommand()) {
-                    // We're the only worker and so can go ahead with claiming this spot. 
-                    if (ch == '.') {
-                        // Easy.
-                        client.writeCommand("PUT", w.id, C);
-                        map[w.x][w.y] = C;
-                        markerExpiry[w.x][w.y] = F;
-                    }
-                    else if (w.numStored < G) {
-                        client.writeCommand("PUT", w.id, C);
-                        w.addToStorage(ch);
-                        map[w.x][w.y] = C;
-                        markerExpiry[w.x][w.y] = F;
+                if (nWorkers[cell(w.hiveX, w.hiveY)] == 1 && client.canExecute(CommandClass.PUT)) {
+                    // We're the only worker and so can go ahead with claiming this spot, as long as we
+                    // have room for whatever is there.
+                    if (ch == '.' || w.numStored < G) {
+                        w.queueClaim();
                     }
                 }
             }
-            else if (ch == '.' && w.numStored > 0 && canExecuteCommand() && nWorkers[w.x][w.y] == 1) {
+            else if (ch == '.' && w.numStored > 0 && client.canExecute(CommandClass.PUT) && nWorkers[cell(w.x, w.y)] == 1) {
                 // Prepare to dump. Make sure that this point is not inside our hive!
                 int distX = w.x - hiveX;
                 int distY = w.y - hiveY;
@@ -1245,33 +1486,28 @@ public class AGridCulture
                 if (distY < 0) distY += A;
                 if (distX >= hiveL && distY >= hiveL) {
                     // Dump something random from our storage.
-                    int index = random.nextInt(w.numStored);
-                    char dump = w.storage[index];
-                    client.writeCommand("PUT", w.id, dump);
-                    w.numStored--;
-                    w.storage[index] = w.storage[w.numStored];
+                    w.queueDump(random.nextInt(w.numStored));
                 }
             }
         }
+        endPhase("hive_claim");
         
         // Clear each worker's previous state about where it's going, if the cell is now occupied by us
         // (or by an opponent's POST and we do not have capacity to replace it).
         for (int i = 0; i < workers.size(); i++) {
             Worker w = workers.get(i);
-            //if (w.hiveX != -1 && (map[w.hiveX][w.hiveY] == C || (map[w.hiveX][w.hiveY] != '.' && w.numStored >= G))) {
+            //if (w.hiveX != -1 && (map[cell(w.hiveX, w.hiveY)] == C || (map[cell(w.hiveX, w.hiveY)] != '.' && w.numStored >= G))) {
                 w.hiveX = w.hiveY = -1;
             //}
             w.allocatedToMove = false;
         }
 
         // Make a note of the hive cells that are already claimed by a worker.
-        for (int i = 0; i < A; i++) {
-            Arrays.fill(claimedForMove[i], false);
-        }
+        Arrays.fill(claimedForMove, false);
         for (int i = 0; i < workers.size(); i++) {
             Worker w = workers.get(i);
             if (w.hiveX != -1) {
-                claimedForMove[w.hiveX][w.hiveY] = true;
+                claimedForMove[cell(w.hiveX, w.hiveY)] = true;
             }
         }
         
@@ -1280,102 +1516,91 @@ public class AGridCulture
         // Note, rather than assigning each worker to a goal, we instead create a list of
         // all the goal/worker pairs that could be assigned, and then allocate them in
         // order of proximity.
-        List<GoalWorker> options = new ArrayList<>();
+        // Each option is the goal cell in the top half of a long and the worker in the bottom half,
+        // keyed by one more than the distance so that cells the worker can't reach, at -1, come first.
+        final BucketQueue options = grid.byDistance;
+        options.clear();
         for (int i = 0; i < workers.size(); i++) {
             Worker w = workers.get(i);
             if (w.hiveX == -1) {
                 // See if there is a part of our hive which we can mark using this worker.
-                int best = -1, bestX = -1, bestY = -1;
                 for (int x = 0; x < hiveL && w.hiveX == -1; x++) {
                     for (int y = 0; y < hiveL && w.hiveX == -1; y++) {
                         int nx = wrap(hiveX + x);
                         int ny = wrap(hiveY + y);
-                        if (!claimedForMove[nx][ny] && (map[nx][ny] == '.' || (map[nx][ny] != C && w.numStored < G))) {
-                            int d = w.distance[nx][ny];
-                            options.add(new GoalWorker(nx, ny, i, d));
+                        if (!claimedForMove[cell(nx, ny)] && (map[cell(nx, ny)] == '.' || (map[cell(nx, ny)] != C && w.numStored < G))) {
+                            int d = w.dist(nx, ny);
+                            options.add(d + 1, ((long) cell(nx, ny) << 32) | i);
                         }
                     }
                 }
             }
         }
-        Collections.sort(options);
-        for (int i = 0; i < options.size(); i++) {
-            GoalWorker g = options.get(i);
-            Worker w = workers.get(g.w);
-            if (w.hiveX == -1 && !claimedForMove[g.x][g.y]) {
+        while (!options.isEmpty()) {
+            final long option = options.poll();
+            final int goal = (int) (option >>> 32);
+            Worker w = workers.get((int) option);
+            if (w.hiveX == -1 && !claimedForMove[goal]) {
                 // We can allocate this cell to this worker.
-                w.hiveX = g.x;
-                w.hiveY = g.y;
-                claimedForMove[g.x][g.y] = true;
+                w.hiveX = grid.x(goal);
+                w.hiveY = grid.y(goal);
+                claimedForMove[goal] = true;
             }
         }
+        endPhase("hive_assign");
         
         // For any workers that have nothing to do and have full storage, send them out to dump stuff.
         for (int i = 0; i < workers.size(); i++) {
             Worker w = workers.get(i);
             if (w.hiveX == -1 && w.numStored >= G) {
                 // Find the closest blank square that we can dump onto.
-                for (int j = 0; j < A; j++) {
-                    Arrays.fill(scored[j], false);
-                }
+                Arrays.fill(scored, false);
+                final int[] queue = grid.queue;
                 int qt = 0;
                 int qh = 1;
-                qx[0] = w.x;
-                qy[0] = w.y;
-                scored[w.x][w.y] = true;
+                queue[0] = cell(w.x, w.y);
+                scored[queue[0]] = true;
                 while (qt < qh) {
-                    int curx = qx[qt];
-                    int cury = qy[qt];
-                    if (map[curx][cury] == '.' && !claimedForMove[curx][cury]) {
+                    int cur = queue[qt];
+                    if (map[cur] == '.' && !claimedForMove[cur]) {
                         break;
                     }
                     qt++;
                     for (int c = 0; c < 4; c++) {
-                        int nx = curx + CX[c];
-                        int ny = cury + CY[c];
-                        if (nx < 0) nx += A;
-                        if (nx >= A) nx -= A;
-                        if (ny < 0) ny += A;
-                        if (ny >= A) ny -= A;
-                        if (!scored[nx][ny]) {
-                            qx[qh] = nx;
-                            qy[qh] = ny;
-                            scored[nx][ny] = true;
-                            qh++;
+                        int next = grid.neighbour[4 * cur + c];
+                        if (!scored[next]) {
+                            queue[qh++] = next;
+                            scored[next] = true;
                         }
                     }
                 }
                 
                 // Move towards the empty cell.
-                int tx = qx[qt];
-                int ty = qy[qt];
-                if ((tx != w.x || ty != w.y) && canExecuteCommand()) {
+                int tx = grid.x(queue[qt]);
+                int ty = grid.y(queue[qt]);
+                if ((tx != w.x || ty != w.y) && client.canExecute(CommandClass.MOVE)) {
                     specialWriter.println("Worker " + w.id + " at " + w.x + " " + w.y + " moving towards empty cell " + tx + " " + ty + " to dump");
-                    int dx = w.dirX[tx][ty];
-                    int dy = w.dirY[tx][ty];
-                    client.writeCommand("MOVE", w.id, dx, dy);
-                    w.nextX = w.x + dx;
-                    w.nextY = w.y + dy;
+                    int dx = w.stepX(tx, ty);
+                    int dy = w.stepY(tx, ty);
+                    w.moveReply = client.queueMove(w.id, dx, dy);
+                    w.nextX = wrap(w.x + dx);
+                    w.nextY = wrap(w.y + dy);
                     w.allocatedToMove = true;
-                    claimedForMove[tx][ty] = true;
+                    claimedForMove[cell(tx, ty)] = true;
                 }
             }
         }
+        endPhase("hive_dump");
         
         // Now execute moves.
         for (int i = 0; i < workers.size(); i++) {
             Worker w = workers.get(i);
-            if (canExecuteCommand()) {
+            if (client.canExecute(CommandClass.MOVE)) {
                 if (w.hiveX != -1 && (w.x != w.hiveX || w.y != w.hiveY)) {
                     // Move this worker towards the hive.
-                    int dx = w.dirX[w.hiveX][w.hiveY];
-                    int dy = w.dirY[w.hiveX][w.hiveY];
-                    try {
-                        client.writeCommand("MOVE", w.id, dx, dy);
-                    }
-                    catch (ProtocolException e) {
-                        throw e;
-                    }
+                    int dx = w.stepX(w.hiveX, w.hiveY);
+                    int dy = w.stepY(w.hiveX, w.hiveY);
+                    w.moveReply = client.queueMove(w.id, dx, dy);
                     w.nextX = wrap(w.x + dx);
                     w.nextY = wrap(w.y + dy);
                     w.allocatedToMove = true;
@@ -1393,12 +1618,12 @@ public class AGridCulture
                             }
                             nx = wrap(nx);
                             ny = wrap(ny);
-                            if (map[nx][ny] != '#' || B) {
+                            if (map[cell(nx, ny)] != '#' || B) {
                                 if (w.x != nx || w.y != ny) {
-                                    int dx = w.dirX[nx][ny];
-                                    int dy = w.dirY[nx][ny];
+                                    int dx = w.stepX(nx, ny);
+                                    int dy = w.stepY(nx, ny);
                                     specialWriter.println("Worker " + w.id + " at " + w.x + " " + w.y + " aiming for " + nx + " " + ny + " to get out");
-                                    client.writeCommand("MOVE", w.id, dx, dy);
+                                    w.moveReply = client.queueMove(w.id, dx, dy);
                                     w.nextX = wrap(w.x + dx);
                                     w.nextY = wrap(w.y + dy);
                                     w.allocatedToMove = true;
@@ -1414,6 +1639,7 @@ public class AGridCulture
                 }
             }
         }
+        endPhase("hive_move");
         
         // Finally, do scoring. We score the area when the total area consumed is equal to the area of the hive
         // minus the number of enemy workers in our hive space.
@@ -1450,7 +1676,7 @@ public class AGridCulture
             for (int j = 0; j < hiveL; j++) {
                 int x = wrap(hiveX + i);
                 int y = wrap(hiveY + j);
-                if (map[x][y] == C && 0 <= markerExpiry[x][y] && markerExpiry[x][y] <= 1) {
+                if (map[cell(x, y)] == C && 0 <= markerExpiry.get(cell(x, y)) && markerExpiry.get(cell(x, y)) <= 1) {
                     expire++;
                 }
             }
@@ -1459,14 +1685,15 @@ public class AGridCulture
         if (force || totalScore >= expectedScore) {
             // Hit it!
             for (Area area : areas) {
-                if (canExecuteCommand()) {
-                    client.writeCommand("SCORE", area.sx, area.sy);
+                if (client.canExecute(CommandClass.SCORE)) {
+                    scoreReplies.add(client.queueScore(area.sx, area.sy));
                 }
             }
         }
         else {
             specialWriter.println("Total score was " + totalScore + " but we expected at least " + expectedScore + " to hit");
         }
+        endPhase("hive_score");
         
         // Last of all, to aid with debugging we dump the state of the hive and the distance of our workers from
         // their targets.
@@ -1474,7 +1701,7 @@ public class AGridCulture
             for (int j = -1; j <= hiveL; j++) {
                 int x = wrap(hiveX + i);
                 int y = wrap(hiveY + j);
-                specialWriter.print(map[x][y]);
+                specialWriter.print(map[cell(x, y)]);
                 boolean hasWorker = false;
                 for (Worker w : workers) {
                     if (w.x == x && w.y == y) {
@@ -1497,144 +1724,120 @@ public class AGridCulture
         specialWriter.flush();
     }
 
+    /**
+     * Breadth-first search over the whole torus, hills included, from the first {@code numSeeds}
+     * cells in the grid's queue. Those must be at distance 0 in dist and every other cell at -1.
+     * Returns the number of cells reached, which are left in the queue in the order they were reached.
+     */
+    private int spreadDistances(int[] dist, int numSeeds)
+    {
+        final int[] queue = grid.queue;
+        final int[] neighbour = grid.neighbour;
+        int qt = 0;
+        int qh = numSeeds;
+        while (qt < qh) {
+            int cur = queue[qt++];
+            for (int c = 0; c < 4; c++) {
+                int next = neighbour[4 * cur + c];
+                if (dist[next] < 0) {
+                    dist[next] = dist[cur] + 1;
+                    queue[qh++] = next;
+                }
+            }
+        }
+        return qh;
+    }
+
     void determineHivemindLocation()
     {
+        final long start = System.nanoTime();
         // Determine the distance of each grid point from the enemies.
         System.err.println("Computing distance of all grid points from enemies");
-        int qt = 0;
+        final int[] queue = grid.queue;
         int qh = 0;
-        for (int i = 0; i < A; i++) {
-            Arrays.fill(evilDist[i], -1);
-        }
+        Arrays.fill(evilDist, -1);
         for (int i = 0; i < enemyWorkers.size(); i++) {
-            int ex = enemyWorkers.get(i).x;
-            int ey = enemyWorkers.get(i).y;
-            if (evilDist[ex][ey] < 0) {
-                qx[qh] = ex;
-                qy[qh] = ey;
-                evilDist[ex][ey] = 0;
-                qh++;
-            }
-        }
-        while (qt < qh) {
-            int curx = qx[qt];
-            int cury = qy[qt];
-            qt++;
-            for (int c = 0; c < 4; c++) {
-                int nx = curx + CX[c];
-                int ny = cury + CY[c];
-                if (nx < 0) nx += A;
-                if (nx >= A) nx -= A;
-                if (ny < 0) ny += A;
-                if (ny >= A) ny -= A;
-                if (evilDist[nx][ny] < 0) {
-                    evilDist[nx][ny] = evilDist[curx][cury] + 1;
-                    qx[qh] = nx;
-                    qy[qh] = ny;
-                    qh++;
-                }
+            int e = cell(enemyWorkers.get(i).x, enemyWorkers.get(i).y);
+            if (evilDist[e] < 0) {
+                queue[qh++] = e;
+                evilDist[e] = 0;
             }
         }
+        spreadDistances(evilDist, qh);
         
-        // And do the same for our workers.
-        qt = 0;
-        qh = 0;
-        for (int i = 0; i < A; i++) {
-            Arrays.fill(workerDist[i], -1);
-        }
-        for (int i = 0; i < workers.size(); i++) {
-            int ex = workers.get(i).x;
-            int ey = workers.get(i).y;
-            if (workerDist[ex][ey] < 0) {
-                qx[qh] = ex;
-                qy[qh] = ey;
-                workerDist[ex][ey] = 0;
-                qh++;
+        // Sum the distances, and count the cells we can't build on, over every rectangle from the
+        // top-left corner, so that the sum over any square is a few lookups.
+        final int stride = A + 1;
+        final int[] evilSum = new int[stride * stride];
+        final int[] blockedSum = new int[stride * stride];
+        for (int y = 0; y < A; y++) {
+            for (int x = 0; x < A; x++) {
+                final int at = (y + 1) * stride + x + 1;
+                final boolean blocked = map[cell(x, y)] == '#' || evilDist[cell(x, y)] < 0;
+                evilSum[at] = (blocked ? 0 : evilDist[cell(x, y)]) + evilSum[at - 1] + evilSum[at - stride] - evilSum[at - stride - 1];
+                blockedSum[at] = (blocked ? 1 : 0) + blockedSum[at - 1] + blockedSum[at - stride] - blockedSum[at - stride - 1];
             }
         }
-        while (qt < qh) {
-            int curx = qx[qt];
-            int cury = qy[qt];
-            qt++;
-            for (int c = 0; c < 4; c++) {
-                int nx = curx + CX[c];
-                int ny = cury + CY[c];
-                if (nx < 0) nx += A;
-                if (nx >= A) nx -= A;
-                if (ny < 0) ny += A;
-                if (ny >= A) ny -= A;
-                if (workerDist[nx][ny] < 0) {
-                    workerDist[nx][ny] = workerDist[curx][cury] + 1;
-                    qx[qh] = nx;
-                    qy[qh] = ny;
-                    qh++;
-                }
-            }
+        
+        // And for our workers, the total distance from each column and row, counted rightwards and
+        // downwards around the board, so that the total distance to any square is two lookups.
+        final long[] workerColumns = new long[A];
+        final long[] workerRows = new long[A];
+        final int[] numInColumn = new int[A];
+        final int[] numInRow = new int[A];
+        long sumX = 0, sumY = 0;
+        for (int w = 0; w < workers.size(); w++) {
+            Worker W = workers.get(w);
+            numInColumn[W.x]++;
+            numInRow[W.y]++;
+            sumX += W.x;
+            sumY += W.y;
+        }
+        for (int k = 0, left = 0, above = 0; k < A; k++) {
+            workerColumns[k] = sumX - (long) workers.size() * k + (long) A * left;
+            workerRows[k] = sumY - (long) workers.size() * k + (long) A * above;
+            left += numInColumn[k];
+            above += numInRow[k];
         }
         
-        // Determine the average distance from evil for all squares that can be formed in the grid.
+        // Determine the average distance from evil for all squares that can be formed in the grid. The
+        // biggest size with a square far enough from evil wins, and at that size the square nearest
+        // our workers, the first in column order on a tie. So go from the biggest size down, scoring
+        // the columns of each size in parallel, each keeping its own best, and stop at the first size
+        // that has one.
         double best = -1;
         int bestX = -1, bestY = -1, bestSize = -1;
         System.err.println("Determining best grid location & square size");
         int maxSize = Math.min(A,  F / (workers.size() * 2));
-        for (int size = 0; size < maxSize; size++) {
-            int num = (size + 1) * (size + 1);
-            for (int i = 0; i < A; i++) {
+        final double[] columnBest = new double[A];
+        final int[] columnBestY = new int[A];
+        for (int size = maxSize - 1; size >= 1 && bestSize < 0; size--) {
+            final int squareSize = size;
+            final int num = (size + 1) * (size + 1);
+            IntStream.range(0, A).parallel().forEach(i -> {
+                columnBest[i] = -1;
+                columnBestY[i] = -1;
                 for (int j = 0; j < A; j++) {
-                    if (map[i][j] == '#') {
-                        bigSquare[i][j][size] = -1;
-                        bigSquareW[i][j][size] = -1;
-                    }
-                    else if (size == 0) {
-                        bigSquare[i][j][size] = evilDist[i][j];
-                        bigSquareW[i][j][size] = workerDist[i][j];
+                    if (squareSum(blockedSum, i, j, squareSize) > 0) {
+                        continue;
                     }
-                    else {
-                        int left = i - 1;
-                        if (left < 0) left += A;
-                        int up = j - 1;
-                        if (up < 0) up += A;
-                        int cornerX = i - size;
-                        if (cornerX < 0) cornerX += A;
-                        int cornerY = j - size;
-                        if (cornerY < 0) cornerY += A;
-                        if (bigSquare[left][j][size - 1] == -1 || bigSquare[i][up][size - 1] == -1 || bigSquare[cornerX][cornerY][0] == -1) {
-                            bigSquare[i][j][size] = -1;
-                            bigSquareW[i][j][size] = -1;
-                        }
-                        else {
-                            int result = bigSquare[left][j][size - 1] + bigSquare[i][up][size - 1] + bigSquare[cornerX][cornerY][0];
-                            int resultW = bigSquareW[left][j][size - 1] + bigSquareW[i][up][size - 1] + bigSquareW[cornerX][cornerY][0];
-                            if (size > 1) {
-                                result -= bigSquare[left][up][size - 2];
-                                resultW -= bigSquareW[left][up][size - 2];
-                            }
-                            bigSquare[i][j][size] = result;
-                            bigSquareW[i][j][size] = resultW;
-                            
-                            double averageDistanceFromEvil = ((double) result) / ((double) num);
-                            //double averageDistanceFromWorkers = ((double) result) / ((double) num);
-                            double averageDistanceFromWorkers = 0;
-                            for (int w = 0; w < workers.size(); w++) {
-                                Worker W = workers.get(w);
-                                int distX = W.x - (i - size / 2);
-                                int distY = W.y - (j - size / 2);
-                                if (distX < 0) distX += A;
-                                if (distX >= A) distX -= A;
-                                if (distY < 0) distY += A;
-                                if (distY >= A) distY -= A;
-                                averageDistanceFromWorkers += distX + distY;
-                            }
-                            averageDistanceFromWorkers /= workers.size();
-                            if (averageDistanceFromEvil > size / 2.0 && (best < 0 || size > bestSize || averageDistanceFromWorkers < best)) {
-                                best = averageDistanceFromWorkers;
-                                bestSize = size;
-                                bestX = i;
-                                bestY = j;
-                            }
-                        }
+                    int result = squareSum(evilSum, i, j, squareSize);
+                    double averageDistanceFromEvil = ((double) result) / ((double) num);
+                    double averageDistanceFromWorkers = workerColumns[wrap(i - squareSize / 2)] + workerRows[wrap(j - squareSize / 2)];
+                    averageDistanceFromWorkers /= workers.size();
+                    if (averageDistanceFromEvil > squareSize / 2.0 && (columnBestY[i] < 0 || averageDistanceFromWorkers < columnBest[i])) {
+                        columnBest[i] = averageDistanceFromWorkers;
+                        columnBestY[i] = j;
                     }
                 }
+            });
+            for (int i = 0; i < A; i++) {
+                if (columnBestY[i] >= 0 && (bestSize < 0 || columnBest[i] < best)) {
+                    best = columnBest[i];
+                    bestSize = size;
+                    bestX = i;
+                    bestY = columnBestY[i];
+                }
             }
         }
                 
@@ -1644,6 +1847,37 @@ public class AGridCulture
         hiveY = bestY - bestSize;
         hiveL = bestSize + 1;
         System.err.println("Hive determined as " + hiveX + " " + hiveY + " " + hiveL + " with distance from enemies of " + best);
+        hiveSeconds = (System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     * The sum over the square of side size + 1 with bottom-right corner (right, bottom), from a
+     * table of sums over rectangles as built by determineHivemindLocation. The square may wrap
+     * around the board, in which case it is made up of up to four rectangles.
+     */
+    private int squareSum(int[] table, int right, int bottom, int size)
+    {
+        final int left = right - size;
+        final int top = bottom - size;
+        if (left >= 0 && top >= 0) {
+            return rectangleSum(table, left, top, right, bottom);
+        }
+        else if (left >= 0) {
+            return rectangleSum(table, left, 0, right, bottom) + rectangleSum(table, left, top + A, right, A - 1);
+        }
+        else if (top >= 0) {
+            return rectangleSum(table, 0, top, right, bottom) + rectangleSum(table, left + A, top, A - 1, bottom);
+        }
+        else {
+            return rectangleSum(table, 0, 0, right, bottom) + rectangleSum(table, left + A, 0, A - 1, bottom)
+                 + rectangleSum(table, 0, top + A, right, A - 1) + rectangleSum(table, left + A, top + A, A - 1, A - 1);
+        }
+    }
+
+    private int rectangleSum(int[] table, int x0, int y0, int x1, int y1)
+    {
+        final int stride = A + 1;
+        return table[(y1 + 1) * stride + x1 + 1] - table[y0 * stride + x1 + 1] - table[(y1 + 1) * stride + x0] + table[y0 * stride + x0];
     }
 
     void runHeroStrategy()
@@ -1651,15 +1885,20 @@ public class AGridCulture
     {
         // Place any markers where we are ready to do so.
         placeMarkers();
+        endPhase("place_markers");
         
         // Score any areas that are ready to go.
         scoreAreas();
+        endPhase("score_areas");
         
+        // See if our workers should drop or destroy any markers. The PUTs go ahead of the MOVEs in
+        // the batch so that they land where the workers are now.
+        dropDestroyMarkers();
+        endPhase("drop_destroy_markers");
+
         // Move our workers.
         moveWorkers();
-
-        // See if our workers should drop or destroy any markers.
-        dropDestroyMarkers();
+        endPhase("move_workers");
     }
     
     static class Harvest
@@ -1681,81 +1920,227 @@ public class AGridCulture
     static int[] CHX2 = {0, 1, 1, 1}, CHY2 = {1, 1, 0, 1};
     static int[] cx = {1, 1, 0, 0}, cy = {0, 1, 1, 0};
 
-    private Harvest getHarvest(int x, int y)
+    Harvest getHarvest(int x, int y)
         throws Exception
     {
         // Need to return:
         //
         // 1) the perimeter, which will include POSTs to be removed from the map
         // 2) any internal POSTs which should be removed from the map.
-        if (map[x][y] == '.') {
+        if (map[cell(x, y)] == '.') {
             throw new Exception("Failed harvest at blank cell " + x + " " + y);
         }
         
-        // Figure out which posts are included.
-        for (int i = 0; i < A; i++) {
-            Arrays.fill(harvestPost[i], false);
-            Arrays.fill(harvestCell[i], false);
-            Arrays.fill(scored[i],  false);
-        }
-        harvestPost[x][y] = true;
-        Queue<Integer> q = new ArrayDeque<>();
-        q.add(y * A + x);
-        while (!q.isEmpty()) {
-            int curY = q.peek() / A;
-            int curX = q.poll() - curY * A;
+        // Figure out which posts are included, and the box they fit in. harvestPost is left clear
+        // between calls, so only the posts we mark here need clearing afterwards.
+        final int[] queue = grid.queue;
+        final int start = cell(x, y);
+        harvestPost[start] = true;
+        queue[0] = start;
+        int qt = 0;
+        int qh = 1;
+        int x0 = x, x1 = x, y0 = y, y1 = y;
+        while (qt < qh) {
+            int cur = queue[qt++];
             for (int c = 0; c < 4; c++) {
-                int nx = curX + CX[c];
-                int ny = curY + CY[c];
-                if (nx < 0) nx += A;
-                if (nx >= A) nx -= A;
-                if (ny < 0) ny += A;
-                if (ny >= A) ny -= A;
-                if (map[nx][ny] == map[x][y] && !harvestPost[nx][ny]) {
-                    harvestPost[nx][ny] = true;
-                    q.add(nx + ny * A);
+                int next = grid.neighbour[4 * cur + c];
+                if (map[next] == map[start] && !harvestPost[next]) {
+                    harvestPost[next] = true;
+                    queue[qh++] = next;
+                    x0 = Math.min(x0, grid.x(next));
+                    x1 = Math.max(x1, grid.x(next));
+                    y0 = Math.min(y0, grid.y(next));
+                    y1 = Math.max(y1, grid.y(next));
                 }
             }
         }
-        
+
+        // A fence clear of the board's edges can be dealt with in the box around it, unless it
+        // wraps around the board.
+        if (x0 >= 1 && y0 >= 1 && x1 <= A - 2 && y1 <= A - 2 && x1 - x0 + 2 <= WINDOW_WIDTH) {
+            final Harvest harvest = getHarvestInWindow(queue, qh, x0, y0, x1, y1);
+            if (harvest != null) {
+                for (int i = 0; i < qh; i++) {
+                    harvestPost[queue[i]] = false;
+                }
+                return harvest;
+            }
+        }
+        final Harvest harvest = getHarvestOnBoard();
+        Arrays.fill(harvestPost, false);
+        return harvest;
+    }
+
+    // The widest box, in gaps, that getHarvestInWindow handles, with one 64-bit word per row.
+    private static final int WINDOW_WIDTH = 63;
+
+    /**
+     * getHarvest for a fence whose posts, {@code posts[0, numPosts)}, lie within [x0, x1] x [y0, y1]
+     * and away from the board's edges. Every gap outside that box is outside the fence, so only the
+     * gaps in and just around the box are filled, a row at a time. Returns null in the odd case of
+     * the fence enclosing most of the board, which getHarvestOnBoard deals with.
+     */
+    private Harvest getHarvestInWindow(int[] posts, int numPosts, int x0, int y0, int x1, int y1)
+    {
+        // Gap (x0 - 1 + u, y0 - 1 + v) is bit u of row v, and post (u, v) is its top-left corner.
+        final int w = x1 - x0 + 2;
+        final int h = y1 - y0 + 2;
+        final long row = -1L >>> (64 - w);
+        final long[] post = new long[h + 1];
+        for (int i = 0; i < numPosts; i++) {
+            post[grid.y(posts[i]) - y0 + 1] |= 1L << (grid.x(posts[i]) - x0 + 1);
+        }
+
+        // Which gaps can be reached from the one to their right, and the one below, without
+        // crossing the fence.
+        final long[] right = new long[h];
+        final long[] down = new long[h];
+        for (int v = 0; v < h; v++) {
+            right[v] = ~((post[v] & post[v + 1]) >>> 1) & (row >>> 1);
+            down[v] = ~(post[v + 1] & (post[v + 1] >>> 1)) & row;
+        }
+
+        // Fill in from the edge of the box, sweeping down and up until nothing changes.
+        final long[] reach = new long[h];
+        for (int v = 0; v < h; v++) {
+            reach[v] = v == 0 || v == h - 1 ? row : 1L | (1L << (w - 1));
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int v = 0; v < h; v++) {
+                final long r = fillRow(v > 0 ? reach[v] | (reach[v - 1] & down[v - 1]) : reach[v], right[v]);
+                changed |= r != reach[v];
+                reach[v] = r;
+            }
+            for (int v = h - 1; v >= 0; v--) {
+                final long r = fillRow(v < h - 1 ? reach[v] | (reach[v + 1] & down[v]) : reach[v], right[v]);
+                changed |= r != reach[v];
+                reach[v] = r;
+            }
+        }
+
+        // As in getHarvestOnBoard, if the outside is the smaller part then it is the part harvested.
+        int inside = 0;
+        for (int v = 0; v < h; v++) {
+            inside += Long.bitCount(~reach[v] & row);
+        }
+        if ((A - 1) * (A - 1) - inside < (A * A) / 2) {
+            return null;
+        }
+
+        // A post next to the inside is on the perimeter if it is one of ours and also next to the
+        // outside, and internal otherwise, if there is a marker on it.
+        final long[] perimeter = new long[h + 1];
+        final long[] internal = new long[h + 1];
+        int numPerimeter = 0, numInternal = 0;
+        for (int v = 0; v <= h; v++) {
+            final long above = v > 0 ? ~reach[v - 1] & row : 0;
+            final long below = v < h ? ~reach[v] & row : 0;
+            final long any = (above | below) | ((above | below) << 1);
+            final long all = (above & below) & ((above & below) << 1);
+            perimeter[v] = post[v] & any & ~all;
+            for (long rest = any & ~perimeter[v]; rest != 0; rest &= rest - 1) {
+                final char ch = map[cell(x0 - 1 + Long.numberOfTrailingZeros(rest), y0 - 1 + v)];
+                if (ch != '.' && ch != '#') {
+                    internal[v] |= Long.lowestOneBit(rest);
+                }
+            }
+            numPerimeter += Long.bitCount(perimeter[v]);
+            numInternal += Long.bitCount(internal[v]);
+        }
+
+        final Harvest harvest = new Harvest(numPerimeter, numInternal);
+        numPerimeter = 0; numInternal = 0;
+        for (int v = 0; v <= h; v++) {
+            for (long bits = perimeter[v]; bits != 0; bits &= bits - 1) {
+                harvest.perimeterX[numPerimeter] = x0 - 1 + Long.numberOfTrailingZeros(bits);
+                harvest.perimeterY[numPerimeter] = y0 - 1 + v;
+                numPerimeter++;
+            }
+            for (long bits = internal[v]; bits != 0; bits &= bits - 1) {
+                harvest.internalX[numInternal] = x0 - 1 + Long.numberOfTrailingZeros(bits);
+                harvest.internalY[numInternal] = y0 - 1 + v;
+                numInternal++;
+            }
+        }
+        return harvest;
+    }
+
+    /**
+     * Spread the gaps in {@code reach} along a row, through the gaps that {@code right} says are
+     * joined to the next one along, doubling the distance covered at each step.
+     */
+    private static long fillRow(long reach, long right)
+    {
+        long joined = right << 1;
+        reach |= joined & (reach << 1);
+        joined &= joined << 1;
+        reach |= joined & (reach << 2);
+        joined &= joined << 2;
+        reach |= joined & (reach << 4);
+        joined &= joined << 4;
+        reach |= joined & (reach << 8);
+        joined &= joined << 8;
+        reach |= joined & (reach << 16);
+        joined &= joined << 16;
+        reach |= joined & (reach << 32);
+
+        joined = right;
+        reach |= joined & (reach >>> 1);
+        joined &= joined >>> 1;
+        reach |= joined & (reach >>> 2);
+        joined &= joined >>> 2;
+        reach |= joined & (reach >>> 4);
+        joined &= joined >>> 4;
+        reach |= joined & (reach >>> 8);
+        joined &= joined >>> 8;
+        reach |= joined & (reach >>> 16);
+        joined &= joined >>> 16;
+        reach |= joined & (reach >>> 32);
+        return reach;
+    }
+
+    /**
+     * getHarvest for any fence, with harvestPost marking its posts, by filling the whole board.
+     */
+    private Harvest getHarvestOnBoard()
+    {
         // Now flood-fill to figure out which cells are in and out.
-        harvestCell[0][0] = true;
-        q.add(0);
+        Arrays.fill(harvestCell, false);
+        Arrays.fill(scored, false);
+        final int[] queue = grid.queue;
+        harvestCell[cell(0, 0)] = true;
+        queue[0] = cell(0, 0);
+        int qt = 0;
+        int qh = 1;
         int count = 1;
-        while (!q.isEmpty()) {
-            int curY = q.peek() / A;
-            int curX = q.poll() - curY * A;
+        while (qt < qh) {
+            int cur = queue[qt++];
             for (int c = 0; c < 4; c++) {
-                int nx = curX + CX[c];
-                int ny = curY + CY[c];
-                int chk1x = curX + CHX1[c];
-                int chk2x = curX + CHX2[c];
-                int chk1y = curY + CHY1[c];
-                int chk2y = curY + CHY2[c];
+                int k = 4 * cur + c;
 
                 // We can only cross to the next cell if this does not cross a fence.
-                if (harvestPost[chk1x][chk1y] && harvestPost[chk2x][chk2y]) {
+                if (harvestPost[grid.fencePost1[k]] && harvestPost[grid.fencePost2[k]]) {
                     continue;
                 }
                 
-                if (nx < 0) nx += A - 1;
-                if (nx >= A - 1) nx -= A - 1;
-                if (ny < 0) ny += A - 1;
-                if (ny >= A - 1) ny -= A - 1;
-                if (!harvestCell[nx][ny]) {
-                    harvestCell[nx][ny] = true;
-                    q.add(nx + ny * A);
+                int next = grid.gapNeighbour[k];
+                if (!harvestCell[next]) {
+                    harvestCell[next] = true;
+                    queue[qh++] = next;
                     count++;
                 }
             }
         }
         
-        // Figure out whether it was the true or false cells that got filled.
+        // Figure out whether it was the true or false cells that got filled. The posts found are
+        // collected in the queue, the perimeter from the front and the internal ones from the back.
         boolean value = count < (A * A) / 2;
         int numPerimeter = 0, numInternal = 0;
         for (int i = 0; i < A - 1; i++) {
             for (int j = 0; j < A - 1; j++) {
-                if (harvestCell[i][j] == value) {
+                if (harvestCell[cell(i, j)] == value) {
                     for (int c = 0; c < 4; c++) {
                         int nx = i + cx[c];
                         int ny = j + cy[c];
@@ -1772,57 +2157,26 @@ public class AGridCulture
                         int mx3 = mx1;
                         int my3 = my2;
                         
-                        if (harvestPost[nx][ny] && !scored[nx][ny] && (harvestCell[mx1][my1] != value || harvestCell[mx2][my2] != value || harvestCell[mx3][my3] != value)) {
-                            scored[nx][ny] = true;
-                            numPerimeter++;
+                        if (harvestPost[cell(nx, ny)] && !scored[cell(nx, ny)] && (harvestCell[cell(mx1, my1)] != value || harvestCell[cell(mx2, my2)] != value || harvestCell[cell(mx3, my3)] != value)) {
+                            scored[cell(nx, ny)] = true;
+                            queue[numPerimeter++] = cell(nx, ny);
                         }
-                        else if (map[nx][ny] != '.' && map[nx][ny] != '#' && !scored[nx][ny]) {
-                            scored[nx][ny] = true;
-                            numInternal++;
+                        else if (map[cell(nx, ny)] != '.' && map[cell(nx, ny)] != '#' && !scored[cell(nx, ny)]) {
+                            scored[cell(nx, ny)] = true;
+                            queue[grid.cells - 1 - numInternal++] = cell(nx, ny);
                         }
                     }
                 }
             }
         }
-        for (int i = 0; i < A; i++) {
-            Arrays.fill(scored[i], false);
-        }
         Harvest harvest = new Harvest(numPerimeter, numInternal);
-        numPerimeter = 0; numInternal = 0;
-        for (int i = 0; i < A - 1; i++) {
-            for (int j = 0; j < A - 1; j++) {
-                if (harvestCell[i][j] == value) {
-                    for (int c = 0; c < 4; c++) {
-                        int nx = i + cx[c];
-                        int ny = j + cy[c];
-
-                        int mx1 = i + (cx[c] == 0 ? -1 : 1);
-                        int my1 = j;
-                        int mx2 = i;
-                        int my2 = j + (cy[c] == 0 ? -1 : 1);
-
-                        if (mx1 < 0) mx1 += A - 1;
-                        if (mx1 >= A - 1) mx1 -= A - 1;
-                        if (my2 < 0) my2 += A - 1;
-                        if (my2 >= A - 1) my2 -= A - 1;
-                        int mx3 = mx1;
-                        int my3 = my2;
-                        
-                        if (harvestPost[nx][ny] && !scored[nx][ny] && (harvestCell[mx1][my1] != value || harvestCell[mx2][my2] != value || harvestCell[mx3][my3] != value)) {
-                            harvest.perimeterX[numPerimeter] = nx;
-                            harvest.perimeterY[numPerimeter] = ny;
-                            scored[nx][ny] = true;
-                            numPerimeter++;
-                        }
-                        else if (map[nx][ny] != '.' && map[nx][ny] != '#' && !scored[nx][ny]) {
-                            harvest.internalX[numInternal] = nx;
-                            harvest.internalY[numInternal] = ny;
-                            scored[nx][ny] = true;
-                            numInternal++;
-                        }
-                    }
-                }
-            }
+        for (int i = 0; i < numPerimeter; i++) {
+            harvest.perimeterX[i] = grid.x(queue[i]);
+            harvest.perimeterY[i] = grid.y(queue[i]);
+        }
+        for (int i = 0; i < numInternal; i++) {
+            harvest.internalX[i] = grid.x(queue[grid.cells - 1 - i]);
+            harvest.internalY[i] = grid.y(queue[grid.cells - 1 - i]);
         }
         return harvest;
     }
@@ -1834,10 +2188,10 @@ public class AGridCulture
         Collections.sort(areas);
         for (Area area : areas) {
             // How big a size do we want before we harvest?
-            if (area.x.length > 5 && canExecuteCommand()) {
+            if (area.x.length > 5 && client.canExecute(CommandClass.SCORE)) {
                 // Yum!
                 System.err.println("Harvesting at " + area.sx + " " + area.sy + " with size of " + area.x.length);
-                client.writeCommand("SCORE", area.sx, area.sy);
+                scoreReplies.add(client.queueScore(area.sx, area.sy));
             }
             else {
                 //System.err.println("Skipping area of size " + area.x.length);
@@ -1845,7 +2199,7 @@ public class AGridCulture
         }        
     }
     
-    class IntList
+    static class IntList
     {
         int[] list = new int[1];
         int length = 0;
@@ -1870,7 +2224,7 @@ public class AGridCulture
             length = 0;
         }
     }
-    class Area implements Comparable<Area> {
+    static class Area implements Comparable<Area> {
         IntList x = new IntList(), y = new IntList();
         int sx, sy;
         
@@ -1880,129 +2234,9 @@ public class AGridCulture
         }
     }
 
-    private List<Area> getAreasToScore()
+    List<Area> getAreasToScore()
     {
-        for (int i = 0; i < A; i++) {
-            Arrays.fill(scored[i], false);
-            Arrays.fill(harvestCell[i], false);
-        }
-
-        // Identify any areas that are ready to be scored. To determine this, we flood-fill and see which areas
-        // form contiguous chunks of space.
-        qx[0] = 0;
-        qy[0] = 0;
-        int qt = 0;
-        int qh = 1;
-        int count = 1;
-        scored[0][0] = true;
-        while (qt < qh) {
-            int curx = qx[qt];
-            int cury = qy[qt];
-            qt++;
-            for (int c = 0; c < 4; c++) {
-                int nx = curx + CX[c];
-                int ny = cury + CY[c];
-                int chk1x = curx + CHX1[c];
-                int chk2x = curx + CHX2[c];
-                int chk1y = cury + CHY1[c];
-                int chk2y = cury + CHY2[c];
-
-                // We can only cross to the next cell if this does not cross a fence.
-                if (map[chk1x][chk1y] == C && map[chk2x][chk2y] == C) {
-                    continue;
-                }
-
-                if (nx < 0) nx += A - 1;
-                if (nx >= A - 1) nx -= A - 1;
-                if (ny < 0) ny += A - 1;
-                if (ny >= A - 1) ny -= A - 1;
-                if (!scored[nx][ny]) {
-                    scored[nx][ny] = true;
-                    qx[qh] = nx;
-                    qy[qh] = ny;
-                    qh++;
-                    count++;
-                }                
-            }
-        }
-        
-        // Find areas to score.
-        List<Area> areas = new ArrayList<>();
-        boolean value = count < (A * A / 2);
-        for (int x = 0; x < A - 1; x++) {
-            for (int y = 0; y < A - 1; y++) {
-                if (scored[x][y] == value && !harvestCell[x][y]) {
-                    // Flood-fill in here, finding any POST to score from.
-                    int scoreX = -1, scoreY = -1;
-                    int size = 1;
-                    qx[0] = x;
-                    qy[0] = y;
-                    qt = 0;
-                    qh = 1;
-                    Area area = new Area();
-                    areas.add(area);
-                    area.x.add(x);
-                    area.y.add(y);
-                    harvestCell[x][y] = true;
-                    while (qt < qh) {
-                        int curx = qx[qt];
-                        int cury = qy[qt];
-                        qt++;
-                        for (int c = 0; c < 4; c++) {
-                            int nx = curx + CX[c];
-                            int ny = cury + CY[c];
-                            int chk1x = curx + CHX1[c];
-                            int chk2x = curx + CHX2[c];
-                            int chk1y = cury + CHY1[c];
-                            int chk2y = cury + CHY2[c];
-
-                            if (nx < 0) nx += A - 1;
-                            if (nx >= A - 1) nx -= A - 1;
-                            if (ny < 0) ny += A - 1;
-                            if (ny >= A - 1) ny -= A - 1;
-
-                            if (scored[nx][ny] != value) {
-                                // If this fence crossing would take us outside the contained area,
-                                // and if we do not yet have a POST to activate the score from, then
-                                // make a note of one of these POSTs now.
-                                if (scoreX == -1) {
-                                    _assert(map[chk1x][chk1y] == C);
-                                    scoreX = chk1x;
-                                    scoreY = chk1y;
-                                }
-                                continue;
-                            }
-
-                            if (scored[nx][ny] == value && !harvestCell[nx][ny]) {
-                                harvestCell[nx][ny] = true;
-                                qx[qh] = nx;
-                                qy[qh] = ny;
-                                area.x.add(nx);
-                                area.y.add(ny);
-                                qh++;
-                                size++;
-                            }                
-                        }
-                    }
-                    if (scoreX == -1) {
-                        System.err.println("Bad area!");
-                        for (int i = 0; i < A - 1; i++) {
-                            for (int j = 0; j < A - 1; j++) {
-                                if (harvestCell[i][j]) {
-                                    System.err.println(i + " " + j);
-                                }
-                            }
-                        }
-                        throw new RuntimeException("Sprack!");
-                    }
-                    else {
-                        area.sx = scoreX;
-                        area.sy = scoreY;
-                    }
-                }
-            }
-        }
-        return areas;
+        return areaIndex.areas(C);
     }
 
     private void placeMarkers()
@@ -2012,10 +2246,10 @@ public class AGridCulture
             // This worker should drop a marker if it's current position does not have a marker,
             // and if it is part of a square grid around which we can construct a blob.
             Worker worker = workers.get(i);
-            if (map[worker.x][worker.y] != '.' || nWorkers[worker.x][worker.y] > 1) {
+            if (map[cell(worker.x, worker.y)] != '.' || nWorkers[cell(worker.x, worker.y)] > 1) {
                 // No point in putting a marker down here, since we can't.
                 if (worker.special) {
-                    specialWriter.println("Unable to put a marker for " + worker.id + " because: " + map[worker.x][worker.y] + " " + nWorkers[worker.x][worker.y]);
+                    specialWriter.println("Unable to put a marker for " + worker.id + " because: " + map[cell(worker.x, worker.y)] + " " + nWorkers[cell(worker.x, worker.y)]);
                     specialWriter.flush();
                 }
                 continue;
@@ -2044,30 +2278,21 @@ public class AGridCulture
                     if (mx < 0) mx += A;
                     if (my < 0) my += A;
                     if (
-                        (map[nx][ny] == '.' || map[nx][ny] == C) &&
-                        (map[mx][ny] == '.' || map[mx][ny] == C) &&
-                        (map[nx][my] == '.' || map[nx][my] == C) &&
-                        (map[mx][my] == '.' || map[my][my] == C))
+                        (map[cell(nx, ny)] == '.' || map[cell(nx, ny)] == C) &&
+                        (map[cell(mx, ny)] == '.' || map[cell(mx, ny)] == C) &&
+                        (map[cell(nx, my)] == '.' || map[cell(nx, my)] == C) &&
+                        (map[cell(mx, my)] == '.' || map[cell(my, my)] == C))
                     {
                         ok = true;
                         break;
                     }
                 }
             }*/
-            if (ok && client.getCommandsUsed() < L - 1) {
+            if (ok && client.canExecute(CommandClass.PUT)) {
                 // We can attempt to put a marker down.
-                try {
-                    specialWriter.println("Putting marker for worker " + worker.id + " at " + worker.x + " " + worker.y);
-                    //System.err.println("Worker " + worker.id + " placing marker at " + worker.x + ";" + worker.y);
-                    client.writeCommand("PUT", worker.id, C);
-                    
-                    // If that succeeded, then make a note on the map.
-                    map[worker.x][worker.y] = C;
-                    markerExpiry[worker.x][worker.y] = F;
-                }
-                catch (ProtocolException e) {
-                    // Failed for some reason; probably because another team beat us to it.
-                }
+                specialWriter.println("Putting marker for worker " + worker.id + " at " + worker.x + " " + worker.y);
+                //System.err.println("Worker " + worker.id + " placing marker at " + worker.x + ";" + worker.y);
+                worker.queueClaim();
             }
             else {
                 if (worker.special) {
@@ -2078,25 +2303,7 @@ public class AGridCulture
         }
     }
 
-    static class TargetCell
-        implements Comparable<TargetCell>
-    {
-        int x, y, value, workerIndex;
-        TargetCell(int x, int y, int value, int workerIndex)
-        {
-            this.x = x;
-            this.y = y;
-            this.value = value;
-            this.workerIndex = workerIndex;
-        }
-        
-        public int compareTo(TargetCell that)
-        {
-            return Integer.compare(value, that.value);
-        }
-    }
-    
-    private void moveWorkers()
+    void moveWorkers()
         throws Exception
     {
         for (int i = 0; i < workers.size(); i++) {
@@ -2110,15 +2317,18 @@ public class AGridCulture
             }
         }
         
+        // Targets are the cell in the top half of a long and the worker in the bottom half, keyed
+        // by the distance between them.
+        final BucketQueue q = grid.byDistance;
         for (int val = 3; val >= 0; val--) {
-            PriorityQueue<TargetCell> q = new PriorityQueue<>();
+            q.clear();
             for (int x = 0; x < A; x++) {
                 for (int y = 0; y < A; y++) {
                     // Skip marked cells and those with foreign or multiple workers in them.
-                    if (claimedForMove[x][y] || map[x][y] != '.' || nWorkers[x][y] > 1) {
+                    if (claimedForMove[cell(x, y)] || map[cell(x, y)] != '.' || nWorkers[cell(x, y)] > 1) {
                         continue;
                     }
-                    if (nWorkers[x][y] == 1) {
+                    if (nWorkers[cell(x, y)] == 1) {
                         boolean foreign = true;
                         for (int i = 0; i < workers.size(); i++) {
                             if (workers.get(i).x == x && workers.get(i).y == y) {
@@ -2148,16 +2358,16 @@ public class AGridCulture
                             if (mx < 0) mx += A;
                             if (my < 0) my += A;
                             if (
-                                (map[nx][ny] == '.' || map[nx][ny] == C) &&
-                                (map[mx][ny] == '.' || map[mx][ny] == C) &&
-                                (map[nx][my] == '.' || map[nx][my] == C) &&
-                                (map[mx][my] == '.' || map[my][my] == C))
+                                (map[cell(nx, ny)] == '.' || map[cell(nx, ny)] == C) &&
+                                (map[cell(mx, ny)] == '.' || map[cell(mx, ny)] == C) &&
+                                (map[cell(nx, my)] == '.' || map[cell(nx, my)] == C) &&
+                                (map[cell(mx, my)] == '.' || map[cell(my, my)] == C))
                             {
                                 ok = true;
-                                int curValue = (map[nx][ny] == C ? 1 : 0) + 
-                                               (map[mx][ny] == C ? 1 : 0) + 
-                                               (map[nx][my] == C ? 1 : 0) + 
-                                               (map[mx][my] == C ? 1 : 0);
+                                int curValue = (map[cell(nx, ny)] == C ? 1 : 0) + 
+                                               (map[cell(mx, ny)] == C ? 1 : 0) + 
+                                               (map[cell(nx, my)] == C ? 1 : 0) + 
+                                               (map[cell(mx, my)] == C ? 1 : 0);
                                 if (curValue > value) {
                                     value = curValue;
                                 }
@@ -2176,33 +2386,35 @@ public class AGridCulture
                         if (worker.allocatedToMove) {
                             continue;
                         }
-                        int dist = worker.distance[x][y];
+                        int dist = worker.dist(x, y);
                         if (dist != -1 && (bestDist == -1 || dist < bestDist)) {
                             bestDist = dist;
                             bestWorker = i;
                         }
                     }
                     if (bestWorker > -1) {
-                        q.add(new TargetCell(x, y, bestDist, bestWorker));
+                        q.add(bestDist, ((long) cell(x, y) << 32) | bestWorker);
                     }
                 }
             }
             
             // Suck out the best candidates and assign them for moves.
             while (!q.isEmpty()) {
-                TargetCell target = q.poll();
-                Worker worker = workers.get(target.workerIndex);
+                final long target = q.poll();
+                final int targetCell = (int) (target >>> 32);
+                final int targetX = grid.x(targetCell), targetY = grid.y(targetCell);
+                Worker worker = workers.get((int) target);
                 if (worker.allocatedToMove) {
                     continue;
                 }
-                else if (client.getCommandsUsed() < L - 1) {
+                else if (client.canExecute(CommandClass.MOVE)) {
                     worker.allocatedToMove = true;
-                    claimedForMove[target.x][target.y] = true;
-                    if (worker.x != target.x || worker.y != target.y) {
-                        //System.err.println("Moving worker " + worker.id + " from " + worker.x + ";" + worker.y + " to " + target.x + ";" + target.y + " for value " + val + " with " + worker.dirX[target.x][target.y] + " and " + worker.dirY[target.x][target.y]);
-                        client.writeCommand("MOVE", worker.id, worker.dirX[target.x][target.y], worker.dirY[target.x][target.y]);
-                        worker.nextX = wrap(worker.x + worker.dirX[target.x][target.y]);
-                        worker.nextY = wrap(worker.y + worker.dirY[target.x][target.y]);
+                    claimedForMove[cell(targetX, targetY)] = true;
+                    if (worker.x != targetX || worker.y != targetY) {
+                        //System.err.println("Moving worker " + worker.id + " from " + worker.x + ";" + worker.y + " to " + targetX + ";" + targetY + " for value " + val + " with " + worker.stepX(targetX, targetY) + " and " + worker.stepY(targetX, targetY));
+                        worker.moveReply = client.queueMove(worker.id, worker.stepX(targetX, targetY), worker.stepY(targetX, targetY));
+                        worker.nextX = wrap(worker.x + worker.stepX(targetX, targetY));
+                        worker.nextY = wrap(worker.y + worker.stepY(targetX, targetY));
                         if (worker.nextX < 0) worker.nextX += A;
                         if (worker.nextX >= A) worker.nextX -= A;
                         if (worker.nextY < 0) worker.nextY += A;
@@ -2222,6 +2434,10 @@ public class AGridCulture
     {
         for (int i = 0; i < workers.size(); i++) {
             Worker worker = workers.get(i);
+            if (worker.putReply != null) {
+                // It already has a marker going down this turn.
+                continue;
+            }
             final boolean shouldReplace;
             if (worker.special) {
                 shouldReplace = ((worker.x == wrap(worker.tx1) || worker.x == wrap(worker.tx1 + worker.txl) || worker.y == wrap(worker.ty1) || worker.y == wrap(worker.ty1 + worker.txl)) || worker.numStored < G - 3) & (worker.numStored < G);
@@ -2229,57 +2445,235 @@ public class AGridCulture
             else {
                 shouldReplace = worker.numStored < G;
             }
-            if (map[worker.x][worker.y] != '.' && map[worker.x][worker.y] != '#' && map[worker.x][worker.y] != C && shouldReplace && nWorkers[worker.x][worker.y] == 1 && canExecuteCommand()) {
-                client.writeCommand("PUT", worker.id, C);
-                worker.addToStorage(map[worker.x][worker.y]);
-                System.err.println("Replaced marker of team " + map[worker.x][worker.y] + " at " + worker.x + " " + worker.y);
-                map[worker.x][worker.y] = C;
-                markerExpiry[worker.x][worker.y] = F;
+            if (map[cell(worker.x, worker.y)] != '.' && map[cell(worker.x, worker.y)] != '#' && map[cell(worker.x, worker.y)] != C && shouldReplace && nWorkers[cell(worker.x, worker.y)] == 1 && client.canExecute(CommandClass.PUT)) {
+                worker.queueClaim();
             }
-            else if (map[worker.x][worker.y] == '.' && worker.numStored > G - 10 && nWorkers[worker.x][worker.y] == 1 && canExecuteCommand()) {
+            else if (map[cell(worker.x, worker.y)] == '.' && worker.numStored > G - 10 && nWorkers[cell(worker.x, worker.y)] == 1 && client.canExecute(CommandClass.PUT)) {
                 // Dump a random marker.
-                int index = random.nextInt(worker.numStored);
-                client.writeCommand("PUT", worker.id, worker.storage[index]);
-                System.err.println("Dumped marker " + worker.storage[index] + " at " + worker.x + " " + worker.y);
-                worker.numStored--;
-                if (worker.numStored > 0) {
-                    worker.storage[index] = worker.storage[worker.numStored];
-                }
+                worker.queueDump(random.nextInt(worker.numStored));
             }
-            else if (map[worker.x][worker.y] != '.' && map[worker.x][worker.y] != '#' && map[worker.x][worker.y] != C && worker.numStored >= G && nWorkers[worker.x][worker.y] == 1 && worker.special) {
+            else if (map[cell(worker.x, worker.y)] != '.' && map[cell(worker.x, worker.y)] != '#' && map[cell(worker.x, worker.y)] != C && worker.numStored >= G && nWorkers[cell(worker.x, worker.y)] == 1 && worker.special) {
                 specialWriter.println("[" + worker.id + "] Unable to replace marker at " + worker.x + " " + worker.y + " because we have no room");
                 specialWriter.flush();
             }
         }
     }
 
-    private boolean canExecuteCommand()
+    private Worker findWorker(List<Worker> candidates, int id)
     {
-        return client.getCommandsUsed() < L - 1;
+        for (int i = 0; i < candidates.size(); i++) {
+            Worker worker = candidates.get(i);
+            if (worker.id == id && worker.storage.length == G) {
+                return worker;
+            }
+        }
+        return null;
     }
 
-    public static void main(String[] args)
-        throws Exception
+    /**
+     * Write out what the server can't tell us again after a restart: the turn we're on, the hive,
+     * and each worker's role and targets. Storage, positions and markers come back from the server.
+     */
+    private void saveSnapshot()
     {
-        int index = Integer.parseInt(args[0]);
         try {
-            final Client client = new Client("grid" + index, null, null, "localhost", PORTS[index], PROMETHEUS_PORTS[index]);
-            final AGridCulture culture = new AGridCulture(client, index);
-            while (true) {
+            final byte[] serverBytes = server.getBytes(StandardCharsets.UTF_8);
+            final byte[] worldBytes = world.getBytes(StandardCharsets.UTF_8);
+            final ByteBuffer out = snapshot.begin(56 + serverBytes.length + worldBytes.length + 64 * workers.size());
+            out.putLong(System.currentTimeMillis());
+            out.putInt(serverBytes.length).put(serverBytes);
+            out.putInt(worldBytes.length).put(worldBytes);
+            out.putInt(A).putInt(G).putInt(lastU).putInt(turns);
+            out.putInt(hiveX).putInt(hiveY).putInt(hiveL).putInt(hivePrecomputedTurn);
+            out.putInt(workers.size());
+            for (int i = 0; i < workers.size(); i++) {
+                final Worker w = workers.get(i);
+                out.putInt(w.id).putInt(w.hiveX).putInt(w.hiveY);
+                out.put((byte) ((w.special ? 1 : 0) | (w.cooperative ? 2 : 0) | (w.primaryCoop ? 4 : 0)));
+                out.putInt(w.cooperator != null ? w.cooperator.id : -1);
+                out.putInt(w.tx1).putInt(w.ty1).putInt(w.tx2).putInt(w.ty2).putInt(w.txl);
+                out.putInt(w.lastTx).putInt(w.lastTy).putInt(w.specialInd).putInt(w.evilCounter).putInt(w.MAX);
+            }
+            snapshot.commit();
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write snapshot: " + e);
+        }
+    }
+
+    /**
+     * Load the state saved by saveSnapshot, if there is a recent one from a game on this server,
+     * ready for run to resume from. The workers get matched up with the server's list on the way in,
+     * as after a reconnect, and if the world isn't the one in the snapshot it is all thrown away.
+     *
+     * @param server where we play, which every later snapshot is labelled with
+     */
+    boolean restoreSnapshot(String server)
+    {
+        this.server = server;
+        final ByteBuffer in;
+        try {
+            in = snapshot.load();
+        }
+        catch (IOException e) {
+            System.err.println("Failed to read snapshot: " + e);
+            return false;
+        }
+        if (in == null || System.currentTimeMillis() - in.getLong() > MAX_SNAPSHOT_AGE_MILLIS || !server.equals(readString(in))) {
+            return false;
+        }
+        world = readString(in);
+        A = in.getInt();
+        G = in.getInt();
+        lastU = in.getInt();
+        turns = in.getInt();
+        hiveX = in.getInt();
+        hiveY = in.getInt();
+        hiveL = in.getInt();
+        hivePrecomputedTurn = in.getInt();
+        final int num = in.getInt();
+        final int[] cooperators = new int[num];
+        workers.clear();
+        for (int i = 0; i < num; i++) {
+            final Worker w = new Worker(in.getInt(), -1, -1);
+            w.hiveX = in.getInt();
+            w.hiveY = in.getInt();
+            final byte flags = in.get();
+            w.special = (flags & 1) != 0;
+            w.cooperative = (flags & 2) != 0;
+            w.primaryCoop = (flags & 4) != 0;
+            cooperators[i] = in.getInt();
+            w.tx1 = in.getInt();
+            w.ty1 = in.getInt();
+            w.tx2 = in.getInt();
+            w.ty2 = in.getInt();
+            w.txl = in.getInt();
+            w.lastTx = in.getInt();
+            w.lastTy = in.getInt();
+            w.specialInd = in.getInt();
+            w.evilCounter = in.getInt();
+            w.MAX = in.getInt();
+            workers.add(w);
+        }
+        for (int i = 0; i < num; i++) {
+            if (cooperators[i] != -1) {
+                workers.get(i).cooperator = findWorker(workers, cooperators[i]);
+            }
+        }
+        System.err.println("Restored snapshot at turn " + turns + " with " + lastU + " turns to go");
+        return true;
+    }
+
+    private static String readString(ByteBuffer in)
+    {
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param resume carry on from a snapshot loaded by restoreSnapshot
+     */
+    static void play(Client client, AGridCulture culture, boolean resume)
+        throws Exception
+    {
+        while (true) {
+            try {
+                culture.run(resume);
+            }
+            catch (ReconnectedException e) {
+                // Same JVM, same warmed-up strategy state; just re-read the world.
+                System.err.println("Reconnected, resyncing: " + e.getCause());
+                culture.scoreReplies.clear();
+                resume = true;
+            }
+            catch (Exception e) {
+                resume = false;
+                if (e.getMessage() == null || !e.getMessage().contains("Failed harvest at blank cell")) {
+                    client.stop();
+                    throw new RuntimeException(e);
+                }
+                else {
+                    System.err.println("Failed harvest! " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run several games in this JVM. They share one selector thread for socket I/O, one pool of
+     * threads for the game loops and a single metrics endpoint (on the first game's port), with
+     * each game's series distinguished by the game label.
+     *
+     * The game loops block, so the pool still needs one platform thread per game, parked whenever
+     * its game waits on the server; the shared selector only saves the socket reads, not the
+     * threads. Driving every game from the selector thread would mean rewriting the strategy as a
+     * state machine, which isn't worth it for a handful of games.
+     *
+     * With -Ddl24.threads=virtual each game instead gets a virtual thread of its own doing plain
+     * blocking reads, and the metrics endpoint handles requests on virtual threads too.
+     */
+    private static void playAll(int[] indices)
+        throws Exception
+    {
+        final boolean virtual = Threads.virtualRequested();
+        final EventLoop loop = virtual ? null : new EventLoop("dl24-io");
+        final Metrics metrics = new Metrics(PROMETHEUS_PORTS[indices[0]], virtual);
+        final ExecutorService pool = virtual ? Threads.newPerTaskExecutor(true) : Executors.newFixedThreadPool(indices.length);
+        final CompletionService<Void> games = new ExecutorCompletionService<>(pool);
+        for (final int index : indices) {
+            games.submit(() -> {
                 try {
-                    culture.run();
+                    final Client client = new Client("grid" + index, null, null, "localhost", PORTS[index], metrics, loop);
+                    final AGridCulture culture = new AGridCulture(client, index);
+                    play(client, culture, culture.restoreSnapshot("localhost:" + PORTS[index]));
+                    return null;
                 }
                 catch (Exception e) {
-                    if (e.getMessage() == null || !e.getMessage().contains("Failed harvest at blank cell")) {
-                        client.stop();
-                        throw new RuntimeException(e);
-                    }
-                    else {
-                        System.err.println("Failed harvest! " + e);
-                    }
+                    throw new RuntimeException("Failed to run client " + index, e);
                 }
+            });
+        }
+        try {
+            // Games only finish by failing, and we bail out on the first one like a single game would.
+            games.take().get();
+        }
+        finally {
+            pool.shutdownNow();
+            metrics.stop();
+            if (loop != null) {
+                loop.stop();
             }
         }
+    }
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        // "all" or a comma-separated list of indices runs several games in this JVM.
+        if (args[0].equals("all") || args[0].contains(",")) {
+            String[] parts = args[0].equals("all") ? new String[] {"0", "1", "2"} : args[0].split(",");
+            int[] indices = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                indices[i] = Integer.parseInt(parts[i].trim());
+            }
+            playAll(indices);
+            return;
+        }
+
+        int index = Integer.parseInt(args[0]);
+        if (Threads.virtualRequested()) {
+            playAll(new int[] {index});
+            return;
+        }
+        try {
+            // Run with -Ddl24.nio=true to talk to the server through a SocketChannel.
+            final boolean nio = Boolean.getBoolean("dl24.nio");
+            final Client client = new Client("grid" + index, null, null, "localhost", PORTS[index], PROMETHEUS_PORTS[index], nio);
+            final AGridCulture culture = new AGridCulture(client, index);
+            // Pick up where a previous run left off, if it was only just now.
+            play(client, culture, culture.restoreSnapshot("localhost:" + PORTS[index]));
+        }
         catch (Exception e) {
             throw new RuntimeException("Failed to start client " + index, e);
         }
@@ -0,0 +1,366 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The areas that getAreasToScore reports, kept up to date as our posts come and go. We remember
+ * which gaps can be reached from gap (0, 0) without crossing one of our fences, and which area
+ * each of the others belongs to, so after a turn in which a few posts changed we only look around
+ * those posts. Anything out of the ordinary, such as a change on the edge of the board where the
+ * gap lattice wraps, means working everything out afresh.
+ */
+class AreaIndex
+{
+    // How far to look for a way around a new post before giving up and starting afresh.
+    private static final int DETOUR_LIMIT = 4096;
+
+    private final Grid grid;
+    private char myColour;
+    private boolean myValid = false;
+
+    // Where our posts were when the index was last brought up to date, and the cells written since.
+    private final boolean[] myOurs;
+    private final boolean[] myPending;
+    private final int[] myChanged;
+    private int myNumChanged = 0;
+    private final int[] myRemoved;
+
+    // If fewer than half the board's cells can be reached, the reached gaps are the areas instead.
+    private final boolean[] myReached;
+    private int myReachedCount;
+    private boolean myValue;
+    private final AGridCulture.Area[] myAreaOf;
+    private final List<AGridCulture.Area> myAreas = new ArrayList<>();
+
+    // Marks for the searches around new posts.
+    private final int[] myStamp;
+    private int myGeneration = 0;
+
+    AreaIndex(Grid grid)
+    {
+        this.grid = grid;
+        myOurs = new boolean[grid.cells];
+        myPending = new boolean[grid.cells];
+        myChanged = new int[grid.cells];
+        myRemoved = new int[grid.cells];
+        myReached = new boolean[grid.cells];
+        myAreaOf = new AGridCulture.Area[grid.cells];
+        myStamp = new int[grid.cells];
+    }
+
+    boolean isFor(Grid grid)
+    {
+        return this.grid == grid;
+    }
+
+    /**
+     * Forget everything, for when the whole map has been rewritten.
+     */
+    void invalidate()
+    {
+        myValid = false;
+    }
+
+    /**
+     * Note that the map has been written at {@code cell}.
+     */
+    void changed(int cell)
+    {
+        if (myValid && !myPending[cell]) {
+            myPending[cell] = true;
+            myChanged[myNumChanged++] = cell;
+        }
+    }
+
+    /**
+     * The areas enclosed by the posts of the given colour, in the order they are first met going
+     * across the board column by column.
+     */
+    List<AGridCulture.Area> areas(char colour)
+    {
+        try {
+            if (!myValid || colour != myColour || !update()) {
+                myColour = colour;
+                rebuild();
+            }
+        }
+        catch (RuntimeException e) {
+            myValid = false;
+            throw e;
+        }
+        return new ArrayList<>(myAreas);
+    }
+
+    private void clearChanges()
+    {
+        for (int i = 0; i < myNumChanged; i++) {
+            myPending[myChanged[i]] = false;
+        }
+        myNumChanged = 0;
+    }
+
+    private boolean isOurs(int cell)
+    {
+        return grid.map[cell] == myColour;
+    }
+
+    private boolean crossesFence(int k)
+    {
+        return myOurs[grid.fencePost1[k]] && myOurs[grid.fencePost2[k]];
+    }
+
+    private void rebuild()
+    {
+        clearChanges();
+        for (int i = 0; i < grid.cells; i++) {
+            myOurs[i] = isOurs(i);
+        }
+        Arrays.fill(myReached, false);
+        Arrays.fill(myAreaOf, null);
+        myAreas.clear();
+
+        // Identify any areas that are ready to be scored. To determine this, we flood-fill and see which areas
+        // form contiguous chunks of space.
+        final int[] queue = grid.queue;
+        final int origin = grid.cell(0, 0);
+        queue[0] = origin;
+        int qt = 0;
+        int qh = 1;
+        myReached[origin] = true;
+        while (qt < qh) {
+            final int cur = queue[qt++];
+            for (int c = 0; c < 4; c++) {
+                final int k = 4 * cur + c;
+                final int next = grid.gapNeighbour[k];
+                if (!crossesFence(k) && !myReached[next]) {
+                    myReached[next] = true;
+                    queue[qh++] = next;
+                }
+            }
+        }
+        myReachedCount = qh;
+        myValue = myReachedCount < (grid.size * grid.size / 2);
+
+        for (int x = 0; x < grid.size - 1; x++) {
+            for (int y = 0; y < grid.size - 1; y++) {
+                final int gap = grid.cell(x, y);
+                if (myReached[gap] == myValue && myAreaOf[gap] == null) {
+                    myAreas.add(fill(gap));
+                }
+            }
+        }
+        myValid = true;
+    }
+
+    /**
+     * Bring the index up to date with the posts changed since last time, or return false if that
+     * needs a rebuild.
+     */
+    private boolean update()
+    {
+        if (myNumChanged == 0) {
+            return true;
+        }
+
+        // Sort out the posts that really changed into those added, which go back into myChanged
+        // as it is read, and those removed.
+        int numAdded = 0, numRemoved = 0;
+        for (int i = 0; i < myNumChanged; i++) {
+            final int cell = myChanged[i];
+            myPending[cell] = false;
+            final boolean ours = isOurs(cell);
+            if (ours == myOurs[cell]) {
+                continue;
+            }
+            final int x = grid.x(cell), y = grid.y(cell);
+            if (myValue || x == 0 || y == 0 || x == grid.size - 1 || y == grid.size - 1) {
+                return false;
+            }
+            myOurs[cell] = ours;
+            if (ours) {
+                myChanged[numAdded++] = cell;
+            }
+            else {
+                myRemoved[numRemoved++] = cell;
+            }
+        }
+        myNumChanged = 0;
+
+        // A new post can only cut gaps off from (0, 0) if it leaves the gaps around it unable to
+        // reach each other.
+        final int[] around = new int[4];
+        for (int i = 0; i < numAdded; i++) {
+            gapsAround(myChanged[i], around);
+            for (int a = 0; a < 4; a++) {
+                if (myReached[around[a]] && !reachesAround(around[a], around)) {
+                    return false;
+                }
+            }
+        }
+
+        // A post taken away may open a way into gaps that couldn't be reached before.
+        final int[] queue = grid.queue;
+        int qh = 0;
+        myGeneration++;
+        for (int i = 0; i < numRemoved; i++) {
+            gapsAround(myRemoved[i], around);
+            for (int a = 0; a < 4; a++) {
+                if (myReached[around[a]] && myStamp[around[a]] != myGeneration) {
+                    myStamp[around[a]] = myGeneration;
+                    queue[qh++] = around[a];
+                }
+            }
+        }
+        final List<AGridCulture.Area> affected = new ArrayList<>();
+        int qt = 0;
+        while (qt < qh) {
+            final int cur = queue[qt++];
+            for (int c = 0; c < 4; c++) {
+                final int k = 4 * cur + c;
+                final int next = grid.gapNeighbour[k];
+                if (!crossesFence(k) && !myReached[next]) {
+                    myReached[next] = true;
+                    myReachedCount++;
+                    queue[qh++] = next;
+                    if (myAreaOf[next] != null && !affected.contains(myAreaOf[next])) {
+                        affected.add(myAreaOf[next]);
+                    }
+                }
+            }
+        }
+
+        // Areas that lost gaps may have split; fill what is left of them again.
+        for (AGridCulture.Area area : affected) {
+            myAreas.remove(area);
+            final int[] left = new int[area.x.length];
+            int numLeft = 0;
+            for (int i = 0; i < area.x.length; i++) {
+                final int gap = grid.cell(area.x.get(i), area.y.get(i));
+                myAreaOf[gap] = null;
+                if (!myReached[gap]) {
+                    left[numLeft++] = area.x.get(i) * grid.size + area.y.get(i);
+                }
+            }
+            Arrays.sort(left, 0, numLeft);
+            for (int i = 0; i < numLeft; i++) {
+                final int gap = grid.cell(left[i] / grid.size, left[i] % grid.size);
+                if (myAreaOf[gap] == null) {
+                    insert(fill(gap));
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The four gaps that have post {@code cell} as a corner, which must be clear of the board's edge.
+     */
+    private void gapsAround(int cell, int[] around)
+    {
+        around[0] = cell - grid.size - 1;
+        around[1] = cell - grid.size;
+        around[2] = cell - 1;
+        around[3] = cell;
+    }
+
+    /**
+     * Whether every reached gap in {@code around} can be reached from {@code from}, looking no
+     * further than DETOUR_LIMIT gaps.
+     */
+    private boolean reachesAround(int from, int[] around)
+    {
+        myGeneration++;
+        int missing = 0;
+        for (int a = 0; a < 4; a++) {
+            if (myReached[around[a]] && around[a] != from) {
+                missing++;
+            }
+        }
+        final int[] queue = grid.queue;
+        queue[0] = from;
+        myStamp[from] = myGeneration;
+        int qt = 0;
+        int qh = 1;
+        while (qt < qh && missing > 0 && qh < DETOUR_LIMIT) {
+            final int cur = queue[qt++];
+            for (int c = 0; c < 4; c++) {
+                final int k = 4 * cur + c;
+                final int next = grid.gapNeighbour[k];
+                if (!crossesFence(k) && myStamp[next] != myGeneration) {
+                    myStamp[next] = myGeneration;
+                    queue[qh++] = next;
+                    for (int a = 0; a < 4; a++) {
+                        if (around[a] == next && myReached[next]) {
+                            missing--;
+                        }
+                    }
+                }
+            }
+        }
+        return missing == 0;
+    }
+
+    private void insert(AGridCulture.Area area)
+    {
+        final int key = area.x.get(0) * grid.size + area.y.get(0);
+        int i = myAreas.size();
+        while (i > 0 && myAreas.get(i - 1).x.get(0) * grid.size + myAreas.get(i - 1).y.get(0) > key) {
+            i--;
+        }
+        myAreas.add(i, area);
+    }
+
+    /**
+     * Flood-fill the area containing {@code seed}, finding a post to score it from.
+     */
+    private AGridCulture.Area fill(int seed)
+    {
+        final int[] queue = grid.queue;
+        int scoreX = -1, scoreY = -1;
+        final AGridCulture.Area area = new AGridCulture.Area();
+        area.x.add(grid.x(seed));
+        area.y.add(grid.y(seed));
+        myAreaOf[seed] = area;
+        queue[0] = seed;
+        int qt = 0;
+        int qh = 1;
+        while (qt < qh) {
+            final int cur = queue[qt++];
+            for (int c = 0; c < 4; c++) {
+                final int k = 4 * cur + c;
+                final int next = grid.gapNeighbour[k];
+
+                if (myReached[next] != myValue) {
+                    // If this fence crossing would take us outside the contained area,
+                    // and if we do not yet have a POST to activate the score from, then
+                    // make a note of one of these POSTs now.
+                    if (scoreX == -1) {
+                        if (!isOurs(grid.fencePost1[k])) {
+                            throw new RuntimeException("No post to score from at " + grid.x(grid.fencePost1[k]) + " " + grid.y(grid.fencePost1[k]));
+                        }
+                        scoreX = grid.x(grid.fencePost1[k]);
+                        scoreY = grid.y(grid.fencePost1[k]);
+                    }
+                    continue;
+                }
+
+                if (myAreaOf[next] == null) {
+                    myAreaOf[next] = area;
+                    queue[qh++] = next;
+                    area.x.add(grid.x(next));
+                    area.y.add(grid.y(next));
+                }
+            }
+        }
+        if (scoreX == -1) {
+            System.err.println("Bad area!");
+            for (int i = 0; i < area.x.length; i++) {
+                System.err.println(area.x.get(i) + " " + area.y.get(i));
+            }
+            throw new RuntimeException("Sprack!");
+        }
+        area.sx = scoreX;
+        area.sy = scoreY;
+        return area;
+    }
+}
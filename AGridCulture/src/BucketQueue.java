@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+/**
+ * A queue of longs taken out in order of a small non-negative key, first in first out among equal
+ * keys, so draining it gives what a stable sort by key would. The entries live in arrays kept from
+ * one use to the next, so once it has grown big enough filling and draining it allocates nothing.
+ */
+class BucketQueue
+{
+    // The entries in the order they were added, each linked to the next with the same key.
+    private long[] myValues = new long[256];
+    private int[] myNext = new int[256];
+    private int mySize = 0;
+
+    // The first and last entry with each key, or -1, for keys up to myMaxKey.
+    private int[] myHeads = emptyBuckets(256);
+    private int[] myTails = new int[256];
+    private int myMaxKey = -1;
+
+    // No key below myCursor has entries left.
+    private int myCursor = 0;
+    private int myRemaining = 0;
+
+    private static int[] emptyBuckets(int size)
+    {
+        final int[] heads = new int[size];
+        Arrays.fill(heads, -1);
+        return heads;
+    }
+
+    /**
+     * Empty the queue, ready for a new round.
+     */
+    void clear()
+    {
+        Arrays.fill(myHeads, 0, myMaxKey + 1, -1);
+        myMaxKey = -1;
+        mySize = 0;
+        myCursor = 0;
+        myRemaining = 0;
+    }
+
+    boolean isEmpty()
+    {
+        return myRemaining == 0;
+    }
+
+    void add(int key, long value)
+    {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key " + key);
+        }
+        if (mySize == myValues.length) {
+            myValues = Arrays.copyOf(myValues, 2 * mySize);
+            myNext = Arrays.copyOf(myNext, 2 * mySize);
+        }
+        if (key >= myHeads.length) {
+            final int size = Integer.highestOneBit(key) << 1;
+            final int[] heads = emptyBuckets(size);
+            System.arraycopy(myHeads, 0, heads, 0, myHeads.length);
+            myHeads = heads;
+            myTails = Arrays.copyOf(myTails, size);
+        }
+        final int entry = mySize++;
+        myValues[entry] = value;
+        myNext[entry] = -1;
+        if (myHeads[key] < 0) {
+            myHeads[key] = entry;
+        }
+        else {
+            myNext[myTails[key]] = entry;
+        }
+        myTails[key] = entry;
+        myMaxKey = Math.max(myMaxKey, key);
+        myCursor = Math.min(myCursor, key);
+        myRemaining++;
+    }
+
+    /**
+     * Take out the value with the smallest key, the earliest added of those on a tie. The queue
+     * must not be empty.
+     */
+    long poll()
+    {
+        while (myHeads[myCursor] < 0) {
+            myCursor++;
+        }
+        final int entry = myHeads[myCursor];
+        myHeads[myCursor] = myNext[entry];
+        myRemaining--;
+        return myValues[entry];
+    }
+}
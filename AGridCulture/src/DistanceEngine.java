@@ -0,0 +1,340 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Distance fields for the workers: for a source cell, how far every cell is and which first step
+ * leads there. Workers standing on the same cell share a field, and fields are kept for a while
+ * after their workers leave, since workers tend to pace back and forth over the same ground.
+ * When nothing blocks movement the torus distance has a closed form and no search is done at all.
+ */
+class DistanceEngine
+{
+    // Set -Dagridculture.debug=true to check every searched field for consistency.
+    static final boolean DEBUG = Boolean.getBoolean("agridculture.debug");
+
+    // Upper bound on the memory spent on cached fields that no worker is using.
+    private static final long CACHE_BYTES = 64L << 20;
+
+    // Set -Dagridculture.searchThreads=N to run up to N searches at once; 1 keeps them all on the
+    // calling thread. The pool is shared by all the games in this JVM.
+    private static final int SEARCH_THREADS =
+        Integer.getInteger("agridculture.searchThreads", Runtime.getRuntime().availableProcessors());
+    private static final ForkJoinPool SEARCH_POOL = SEARCH_THREADS > 1 ? new ForkJoinPool(SEARCH_THREADS) : null;
+
+    private static final byte NO_STEP = 4;
+    private static final char FAR = Character.MAX_VALUE;
+
+    // Bytes taken by a searched field for each cell of the board.
+    private static final double FIELD_BYTES_PER_CELL = 2.25;
+
+    /**
+     * The distances from one source cell. Cells that cannot be reached are at distance -1 with a
+     * step of (0, 0), as is the source itself apart from its distance of 0.
+     */
+    final class Field
+    {
+        int source;
+        private int sourceX, sourceY;
+
+        // Null if the closed form is in use. Otherwise distance holds one more than the distance, so
+        // that 0 means unreached, or FAR if the real distance is too big and is kept in far instead.
+        // The first step towards each cell is packed into two bits, four cells to a byte.
+        private final char[] distance;
+        private final byte[] steps;
+        private int[] far;
+
+        private int users;
+
+        private DistanceEngine engine()
+        {
+            return DistanceEngine.this;
+        }
+
+        private Field(boolean searched)
+        {
+            if (searched) {
+                distance = new char[grid.cells];
+                steps = new byte[(grid.cells + 3) / 4];
+            }
+            else {
+                distance = null;
+                steps = null;
+            }
+        }
+
+        int distance(int cell)
+        {
+            if (distance == null) {
+                return torus(grid.x(cell) - sourceX) + torus(grid.y(cell) - sourceY);
+            }
+            final char d = distance[cell];
+            return d == FAR ? far[cell] : d - 1;
+        }
+
+        int stepX(int cell)
+        {
+            final int c = step(cell);
+            return c == NO_STEP ? 0 : Grid.DX[c];
+        }
+
+        int stepY(int cell)
+        {
+            final int c = step(cell);
+            return c == NO_STEP ? 0 : Grid.DY[c];
+        }
+
+        private int step(int cell)
+        {
+            if (distance == null) {
+                // A breadth-first search expanding left, right, up, down in that order reaches each
+                // cell first through a horizontal step if it needs one, preferring left on a tie.
+                final int dx = Math.floorMod(grid.x(cell) - sourceX, grid.size);
+                if (dx != 0) {
+                    return dx < grid.size - dx ? 1 : 0;
+                }
+                final int dy = Math.floorMod(grid.y(cell) - sourceY, grid.size);
+                if (dy != 0) {
+                    return dy < grid.size - dy ? 3 : 2;
+                }
+                return NO_STEP;
+            }
+            if (distance[cell] <= 1) {
+                // Unreached, or the source.
+                return NO_STEP;
+            }
+            return (steps[cell >> 2] >> ((cell & 3) << 1)) & 3;
+        }
+
+        private void reach(int cell, int d, int c)
+        {
+            if (d < FAR - 1) {
+                distance[cell] = (char) (d + 1);
+            }
+            else {
+                if (far == null) {
+                    far = new int[grid.cells];
+                }
+                far[cell] = d;
+                distance[cell] = FAR;
+            }
+            final int shift = (cell & 3) << 1;
+            steps[cell >> 2] = (byte) ((steps[cell >> 2] & ~(3 << shift)) | (c << shift));
+        }
+
+        /**
+         * Fill in the field from scratch, returning the number of cells reached.
+         */
+        private int search(int[] queue)
+        {
+            Arrays.fill(distance, (char) 0);
+            final int[] neighbour = grid.neighbour;
+            final char[] map = grid.map;
+            distance[source] = 1;
+            queue[0] = source;
+            int qh = 1;
+            int qt = 0;
+            while (qt < qh) {
+                final int cur = queue[qt++];
+                final int nextDistance = distance(cur) + 1;
+                final int curStep = cur == source ? -1 : step(cur);
+                for (int c = 0; c < 4; c++) {
+                    final int next = neighbour[4 * cur + c];
+                    if (distance[next] != 0 || (map[next] == '#' && !hillsPassable)) {
+                        continue;
+                    }
+                    reach(next, nextDistance, curStep < 0 ? c : curStep);
+                    queue[qh++] = next;
+                }
+            }
+            if (DEBUG) {
+                check();
+            }
+            return qh;
+        }
+
+        private void check()
+        {
+            // Every reached cell must be one further than one of its neighbours, and its first step
+            // must lead somewhere one away from the source.
+            for (int i = 0; i < grid.cells; i++) {
+                final int d = distance(i);
+                if (d <= 0) {
+                    continue;
+                }
+                boolean parent = false;
+                for (int c = 0; c < 4; c++) {
+                    parent |= distance(grid.neighbour[4 * i + c]) == d - 1;
+                }
+                if (!parent || distance(grid.neighbour[4 * source + step(i)]) != 1) {
+                    throw new RuntimeException("Bad distance " + d + " to cell " + i + " from " + source);
+                }
+            }
+        }
+    }
+
+    private final Grid grid;
+    private final boolean hillsPassable;
+    private final boolean closedForm;
+    private final int capacity;
+
+    private final Map<Integer, Field> myFields = new HashMap<>();
+
+    // Fields nobody is using, least recently released first, and spare ones to recycle.
+    private final ArrayDeque<Field> myIdle = new ArrayDeque<>();
+    private final ArrayDeque<Field> mySpare = new ArrayDeque<>();
+
+    // Fields handed out by moveSourceLater that have not been searched yet.
+    private final List<Field> myPending = new ArrayList<>();
+
+    // Queues for searches on pool threads; the calling thread uses the grid's.
+    private final ThreadLocal<int[]> myQueues;
+
+    private int searches = 0;
+    private long cellsSearched = 0;
+
+    /**
+     * Start afresh for a new map. Hills never change during a game, so whether they get in the
+     * way is decided once here.
+     */
+    DistanceEngine(Grid grid, boolean hillsPassable)
+    {
+        this.grid = grid;
+        this.hillsPassable = hillsPassable;
+        boolean open = true;
+        if (!hillsPassable) {
+            for (int i = 0; i < grid.cells && open; i++) {
+                open = grid.map[i] != '#';
+            }
+        }
+        closedForm = open;
+        capacity = (int) Math.max(1, Math.min(1024, CACHE_BYTES / (FIELD_BYTES_PER_CELL * grid.cells)));
+        myQueues = ThreadLocal.withInitial(() -> new int[grid.cells]);
+    }
+
+    /**
+     * True if this engine can carry on serving a map on {@code grid} with the same hill rule.
+     */
+    boolean isFor(Grid grid, boolean hillsPassable)
+    {
+        return this.grid == grid && this.hillsPassable == hillsPassable;
+    }
+
+    boolean isClosedForm()
+    {
+        return closedForm;
+    }
+
+    /**
+     * The number of breadth-first searches done so far.
+     */
+    int getSearches()
+    {
+        return searches;
+    }
+
+    /**
+     * The number of cells those searches have reached between them.
+     */
+    long getCellsSearched()
+    {
+        return cellsSearched;
+    }
+
+    private int torus(int d)
+    {
+        d = Math.abs(d);
+        return Math.min(d, grid.size - d);
+    }
+
+    /**
+     * Move a user of {@code field} to a new source cell, returning the field to use from now on.
+     * The old field may be null, or left over from an earlier engine, in which case it is dropped.
+     */
+    Field moveSource(Field field, int source)
+    {
+        field = moveSourceLater(field, source);
+        searchPending();
+        return field;
+    }
+
+    /**
+     * As {@link #moveSource}, but leave any search this needs until the next call to
+     * {@link #searchPending}. The field must not be read before then.
+     */
+    Field moveSourceLater(Field field, int source)
+    {
+        if (field != null && field.engine() == this) {
+            if (field.source == source) {
+                return field;
+            }
+            release(field);
+        }
+        return acquire(source);
+    }
+
+    private Field acquire(int source)
+    {
+        Field field = myFields.get(source);
+        if (field == null) {
+            field = newField();
+            field.source = source;
+            field.sourceX = grid.x(source);
+            field.sourceY = grid.y(source);
+            if (!closedForm) {
+                myPending.add(field);
+            }
+            myFields.put(source, field);
+        }
+        else if (field.users == 0) {
+            myIdle.remove(field);
+        }
+        field.users++;
+        return field;
+    }
+
+    private void release(Field field)
+    {
+        if (--field.users > 0) {
+            return;
+        }
+        myIdle.addLast(field);
+        if (myIdle.size() > capacity) {
+            final Field evicted = myIdle.removeFirst();
+            myFields.remove(evicted.source);
+            myPending.remove(evicted);
+            mySpare.addLast(evicted);
+        }
+    }
+
+    /**
+     * Run the searches left by moveSourceLater, in parallel if there are several and a pool to
+     * run them on. The searches only read the map, and each has its own field and queue.
+     */
+    void searchPending()
+    {
+        final int n = myPending.size();
+        long cells = 0;
+        if (n == 1 || (n > 1 && SEARCH_POOL == null)) {
+            for (int i = 0; i < n; i++) {
+                cells += myPending.get(i).search(grid.queue);
+            }
+        }
+        else if (n > 1) {
+            cells = SEARCH_POOL.submit(() -> myPending.parallelStream().mapToLong(field -> field.search(myQueues.get())).sum()).join();
+        }
+        searches += n;
+        cellsSearched += cells;
+        myPending.clear();
+    }
+
+    private Field newField()
+    {
+        final Field spare = mySpare.pollFirst();
+        return spare != null ? spare : new Field(!closedForm);
+    }
+}
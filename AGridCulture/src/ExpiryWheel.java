@@ -0,0 +1,136 @@
+import java.util.Arrays;
+
+/**
+ * How many turns each marker on the board has left. Markers are kept in a ring of buckets by the
+ * turn they expire on, so the end of a turn only looks at the markers that expire then rather than
+ * the whole board, and how long any marker has left is still a lookup.
+ */
+class ExpiryWheel
+{
+    private static final int NONE = Integer.MIN_VALUE;
+
+    // Turns ticked off so far.
+    private int myTurn = 0;
+
+    // For each cell, the turn on which its marker expires, or NONE. The cells expiring on a turn
+    // are linked through myNext and myPrev from the bucket for that turn, modulo the ring size.
+    private final int[] myExpiresAt;
+    private final int[] myNext;
+    private final int[] myPrev;
+    private int[] myHeads = emptyRing(16);
+
+    ExpiryWheel(int cells)
+    {
+        myExpiresAt = new int[cells];
+        myNext = new int[cells];
+        myPrev = new int[cells];
+        Arrays.fill(myExpiresAt, NONE);
+    }
+
+    private static int[] emptyRing(int size)
+    {
+        final int[] heads = new int[size];
+        Arrays.fill(heads, -1);
+        return heads;
+    }
+
+    /**
+     * The number of turn ends the marker at {@code cell} will see before it expires, or -1 if
+     * there is no marker or it never expires.
+     */
+    int get(int cell)
+    {
+        return myExpiresAt[cell] == NONE ? -1 : myExpiresAt[cell] - myTurn - 1;
+    }
+
+    /**
+     * Give the marker at {@code cell} this many turns; a negative number means it never expires.
+     */
+    void set(int cell, int turnsLeft)
+    {
+        clear(cell);
+        if (turnsLeft < 0) {
+            return;
+        }
+        if (turnsLeft + 2 > myHeads.length) {
+            grow(turnsLeft + 2);
+        }
+        link(cell, myTurn + turnsLeft + 1);
+    }
+
+    void clear(int cell)
+    {
+        if (myExpiresAt[cell] == NONE) {
+            return;
+        }
+        if (myPrev[cell] >= 0) {
+            myNext[myPrev[cell]] = myNext[cell];
+        }
+        else {
+            myHeads[myExpiresAt[cell] & (myHeads.length - 1)] = myNext[cell];
+        }
+        if (myNext[cell] >= 0) {
+            myPrev[myNext[cell]] = myPrev[cell];
+        }
+        myExpiresAt[cell] = NONE;
+    }
+
+    /**
+     * Forget every marker, for a new map.
+     */
+    void clearAll()
+    {
+        for (int i = 0; i < myHeads.length; i++) {
+            for (int cell = myHeads[i]; cell >= 0; cell = myNext[cell]) {
+                myExpiresAt[cell] = NONE;
+            }
+            myHeads[i] = -1;
+        }
+    }
+
+    /**
+     * End a turn, writing the cells whose markers expire into {@code expired} and returning how
+     * many there are. Those markers are forgotten.
+     */
+    int tick(int[] expired)
+    {
+        myTurn++;
+        final int bucket = myTurn & (myHeads.length - 1);
+        int n = 0;
+        for (int cell = myHeads[bucket]; cell >= 0; cell = myNext[cell]) {
+            myExpiresAt[cell] = NONE;
+            expired[n++] = cell;
+        }
+        myHeads[bucket] = -1;
+        return n;
+    }
+
+    private void link(int cell, int expiresAt)
+    {
+        final int bucket = expiresAt & (myHeads.length - 1);
+        myExpiresAt[cell] = expiresAt;
+        myPrev[cell] = -1;
+        myNext[cell] = myHeads[bucket];
+        if (myHeads[bucket] >= 0) {
+            myPrev[myHeads[bucket]] = cell;
+        }
+        myHeads[bucket] = cell;
+    }
+
+    /**
+     * Make the ring big enough that no two pending expiry turns share a bucket.
+     */
+    private void grow(int size)
+    {
+        final int[] old = myHeads;
+        myHeads = emptyRing(Integer.highestOneBit(size - 1) << 1);
+        for (int i = 0; i < old.length; i++) {
+            int cell = old[i];
+            while (cell >= 0) {
+                final int next = myNext[cell];
+                link(cell, myExpiresAt[cell]);
+                cell = next;
+            }
+        }
+    }
+}
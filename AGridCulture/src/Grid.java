@@ -0,0 +1,117 @@
+/**
+ * The board and the per-cell scratch arrays used by the strategies, flattened so that cell (x, y)
+ * lives at index {@code y * size + x}. Neighbours on the torus are precomputed, as are those on
+ * the lattice of gaps between cells that fences are traced around, so the searches don't have to
+ * wrap coordinates themselves. A grid is reused for as long as the board size stays the same.
+ */
+class Grid
+{
+    // Same order as AGridCulture.CX/CY: left, right, up, down.
+    static final int[] DX = {-1, 1, 0, 0}, DY = {0, 0, -1, 1};
+
+    final int size;
+    final int cells;
+
+    final char[] map;
+    final ExpiryWheel markerExpiry;
+    final int[] nWorkers;
+    final boolean[] claimedForMove;
+    final boolean[] harvestCell;
+    final boolean[] harvestPost;
+    final boolean[] scored;
+    final int[] evilDist;
+
+    // Scratch queue of cells for the searches.
+    final int[] queue;
+
+    // Scratch queue for handing out targets to workers nearest first.
+    final BucketQueue byDistance = new BucketQueue();
+
+    // neighbour[4 * cell + c] is the cell one step from cell in direction c, wrapping around the torus.
+    final int[] neighbour;
+
+    // The gap lattice has (size - 1) x (size - 1) gaps, each identified by the cell at its top-left, and
+    // wraps with that period. gapNeighbour[4 * gap + c] is the next gap in direction c, which can only
+    // be reached if the cells fencePost1[4 * gap + c] and fencePost2[4 * gap + c] are not both posts.
+    final int[] gapNeighbour;
+    final int[] fencePost1;
+    final int[] fencePost2;
+
+    Grid(int size)
+    {
+        this.size = size;
+        cells = size * size;
+        map = new char[cells];
+        markerExpiry = new ExpiryWheel(cells);
+        nWorkers = new int[cells];
+        claimedForMove = new boolean[cells];
+        harvestCell = new boolean[cells];
+        harvestPost = new boolean[cells];
+        scored = new boolean[cells];
+        evilDist = new int[cells];
+        queue = new int[cells];
+
+        neighbour = new int[4 * cells];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                for (int c = 0; c < 4; c++) {
+                    neighbour[4 * cell(x, y) + c] = cell(wrap(x + DX[c]), wrap(y + DY[c]));
+                }
+            }
+        }
+
+        // The posts either side of the fence crossed by moving from a gap in each direction.
+        final int[] post1X = {0, 1, 0, 0}, post1Y = {0, 0, 0, 1};
+        final int[] post2X = {0, 1, 1, 1}, post2Y = {1, 1, 0, 1};
+        gapNeighbour = new int[4 * cells];
+        fencePost1 = new int[4 * cells];
+        fencePost2 = new int[4 * cells];
+        final int period = size - 1;
+        for (int y = 0; y < period; y++) {
+            for (int x = 0; x < period; x++) {
+                final int k = 4 * cell(x, y);
+                for (int c = 0; c < 4; c++) {
+                    int nx = x + DX[c];
+                    int ny = y + DY[c];
+                    if (nx < 0) nx += period;
+                    if (nx >= period) nx -= period;
+                    if (ny < 0) ny += period;
+                    if (ny >= period) ny -= period;
+                    gapNeighbour[k + c] = cell(nx, ny);
+                    fencePost1[k + c] = cell(x + post1X[c], y + post1Y[c]);
+                    fencePost2[k + c] = cell(x + post2X[c], y + post2Y[c]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return a grid for the given board size, reusing {@code grid} if it already has that size.
+     */
+    static Grid forSize(Grid grid, int size)
+    {
+        return grid != null && grid.size == size ? grid : new Grid(size);
+    }
+
+    int cell(int x, int y)
+    {
+        return y * size + x;
+    }
+
+    int x(int cell)
+    {
+        return cell % size;
+    }
+
+    int y(int cell)
+    {
+        return cell / size;
+    }
+
+    int wrap(int k)
+    {
+        if (k < 0) return k + size;
+        else if (k >= size) return k - size;
+        else return k;
+    }
+}
@@ -0,0 +1,849 @@
+import java.io.BufferedReader;
+import java.io.CharArrayWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import dl24.Client;
+import dl24.Transport;
+
+/**
+ * A stand-in for the game server on a loopback socket, for timing the strategy end to end without
+ * the contest. It speaks the commands AGridCulture uses to a single client, which is let in
+ * without a login as if through the proxy. The world comes either from a log written by the
+ * proxy's --log option, in which case the other teams do what they did in the recorded game, or
+ * from a random map with the other teams wandering about dropping markers.
+ *
+ * The rules are the ones the strategy itself assumes: a PUT of our colour takes any other marker
+ * into storage, a PUT of a stored colour dumps it on a blank cell, markers last F turns, and a
+ * SCORE harvests the gaps enclosed by the fence it names, one point a gap, at the end of the turn.
+ * Where the real server does something subtler the scores won't match, but the load will.
+ *
+ * Usage: GridSimulator [--replay LOG | --size A --workers W --hills FRACTION] [--seed S]
+ *                      [--turns N] [--turn-millis MS] [--port P] [--play INDEX]
+ *
+ * With --play, an AGridCulture client is run in this JVM against the simulator. At the end the
+ * time the client took over each turn, from being let go to sending WAIT, is summarised.
+ */
+public class GridSimulator
+{
+    private static final String DEFAULT_DESCRIPTION_REST = "1.0 %d 200 10 1 1.0 1.0 1.0 1.0 1.0 1.0 1.0 1.0 0 %d 1.0";
+
+    private static class Worker
+    {
+        final int id;
+        final char colour;
+        int x, y;
+        final StringBuilder storage = new StringBuilder();
+        boolean moved, put;
+
+        Worker(int id, char colour, int x, int y)
+        {
+            this.id = id;
+            this.colour = colour;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * The parts of a proxy log that the simulator replays: the world as first described to us, and
+     * for each turn where the other teams' workers were and what the history said happened.
+     */
+    static class Recording
+    {
+        String description;
+        List<String> map = new ArrayList<>();
+        List<String> myWorkers = new ArrayList<>();
+        List<List<String>> enemies = new ArrayList<>();
+        List<String[]> histories = new ArrayList<>();
+
+        static Recording read(String path)
+            throws IOException
+        {
+            final List<String> commands = new ArrayList<>();
+            final List<String> replies = new ArrayList<>();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    final String[] parts = line.split(" ", 3);
+                    if (parts.length < 3) {
+                        continue;
+                    }
+                    final String message = decodeJsonString(parts[2]).trim();
+                    if (parts[1].equals(">")) {
+                        commands.add(message);
+                    }
+                    else if (parts[1].equals("<")) {
+                        replies.add(message);
+                    }
+                }
+            }
+
+            // Replies come back in the order the commands went out, so walk both together, using
+            // what each command is known to reply with to find where the next reply starts.
+            final Recording recording = new Recording();
+            int r = 0;
+            for (int i = 0; i < commands.size() && r < replies.size(); i++) {
+                final String command = commands.get(i).split(" ")[0];
+                if (!replies.get(r++).equals("OK")) {
+                    continue;
+                }
+                switch (command) {
+                case "DESCRIBE_WORLD":
+                    if (recording.description == null) {
+                        recording.description = replies.get(r);
+                    }
+                    r++;
+                    break;
+                case "SHOW_MAP": {
+                    final int size = Integer.parseInt(replies.get(r).split(" ")[0]);
+                    if (recording.map.isEmpty()) {
+                        recording.map.addAll(replies.subList(r, r + 1 + 2 * size));
+                    }
+                    r += 1 + 2 * size;
+                    break;
+                }
+                case "LIST_MY_WORKERS":
+                case "LIST_ENEMY_WORKERS": {
+                    final int n = Integer.parseInt(replies.get(r));
+                    final List<String> lines = replies.subList(r + 1, r + 1 + n);
+                    if (command.equals("LIST_ENEMY_WORKERS")) {
+                        recording.enemies.add(new ArrayList<>(lines));
+                    }
+                    else if (recording.myWorkers.isEmpty()) {
+                        recording.myWorkers.addAll(lines);
+                    }
+                    r += 1 + n;
+                    break;
+                }
+                case "SHOW_HISTORY":
+                    recording.histories.add(replies.subList(r, r + 3).toArray(new String[3]));
+                    r += 3;
+                    break;
+                case "TIME_TO_END":
+                case "LAST_SCORE":
+                    r++;
+                    break;
+                case "WAIT":
+                    r += 2;
+                    break;
+                default:
+                    break;
+                }
+            }
+            if (recording.description == null || recording.map.isEmpty()) {
+                throw new IOException("No DESCRIBE_WORLD and SHOW_MAP in " + path);
+            }
+            return recording;
+        }
+
+        /**
+         * The string in a JSON string literal, as written by the proxy for each message.
+         */
+        static String decodeJsonString(String json)
+        {
+            final StringBuilder s = new StringBuilder();
+            for (int i = 1; i < json.length() - 1; i++) {
+                char c = json.charAt(i);
+                if (c == '\\') {
+                    c = json.charAt(++i);
+                    switch (c) {
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'u':
+                        c = (char) Integer.parseInt(json.substring(i + 1, i + 5), 16);
+                        i += 4;
+                        break;
+                    default:
+                        break;
+                    }
+                }
+                s.append(c);
+            }
+            return s.toString();
+        }
+    }
+
+    private final String description;
+    private final int A;
+    private final boolean B;
+    private final char C;
+    private final int F, G;
+    private final boolean H;
+    private final int L;
+    private final Grid grid;
+    private final char[] map;
+    // The turn at the end of which each marker disappears, or -1.
+    private final int[] expiresAt;
+
+    private final List<Worker> workers = new ArrayList<>();
+    private final List<Worker> enemies = new ArrayList<>();
+    private final Recording recording;
+    private final Random random;
+    // Let a worker stay put with a MOVE of (0, 0), and move and put any number of times a turn, so
+    // that benchmarks can repeat a turn's commands against a board that doesn't change.
+    private final boolean lenient;
+
+    private final int turns;
+    private final long turnNanos;
+    private int turn = 0;
+    private long turnStart;
+
+    // What happened in the turn being played, and in the last one for SHOW_HISTORY and LAST_SCORE.
+    private final List<int[]> removed = new ArrayList<>();
+    private final List<int[]> placed = new ArrayList<>();
+    private final List<int[]> scores = new ArrayList<>();
+    private String[] history = {"0", "0", "0"};
+    private final double[] lastScore = new double[128];
+    private final double[] totalScore = new double[128];
+    private int commandsThisTurn = 0;
+
+    // For the summary: the client's time for each turn, and the commands it sent.
+    private final long[] turnTimes;
+    private long totalCommands = 0;
+
+    /**
+     * @param size,numWorkers,hills the side of a generated board, the workers each team has on it,
+     *                              and the fraction of its cells that are hills
+     * @param lenient               relax the one MOVE and one PUT a worker a turn rules
+     */
+    GridSimulator(Recording recording, int size, int numWorkers, double hills, long seed, int turns, int turnMillis, boolean lenient)
+    {
+        this.recording = recording;
+        this.lenient = lenient;
+        this.random = new Random(seed);
+        this.turns = turns;
+        this.turnNanos = turnMillis * 1000000L;
+        turnTimes = new long[turns];
+
+        if (recording != null) {
+            description = recording.description;
+        }
+        else {
+            description = size + " 0 A " + String.format(DEFAULT_DESCRIPTION_REST, numWorkers, 10 * numWorkers + 10);
+        }
+        final String[] d = description.split(" ");
+        A = Integer.parseInt(d[0]);
+        B = d[1].equals("1");
+        C = d[2].charAt(0);
+        F = Integer.parseInt(d[5]);
+        G = Integer.parseInt(d[6]);
+        H = d[7].equals("1");
+        L = Integer.parseInt(d[17]);
+
+        grid = new Grid(A);
+        map = grid.map;
+        expiresAt = new int[grid.cells];
+        Arrays.fill(expiresAt, -1);
+        if (recording != null) {
+            for (int y = 0; y < A; y++) {
+                final String row = recording.map.get(1 + y);
+                final String[] left = recording.map.get(1 + A + y).trim().split(" +");
+                for (int x = 0; x < A; x++) {
+                    map[grid.cell(x, y)] = row.charAt(x);
+                    if (x < left.length && !left[x].isEmpty() && Integer.parseInt(left[x]) >= 0) {
+                        expiresAt[grid.cell(x, y)] = Integer.parseInt(left[x]);
+                    }
+                }
+            }
+            for (String line : recording.myWorkers) {
+                final String[] w = line.split(" ");
+                final Worker worker = new Worker(Integer.parseInt(w[0]), C, Integer.parseInt(w[1]), Integer.parseInt(w[2]));
+                for (int i = 0; i < Integer.parseInt(w[3]); i++) {
+                    for (int k = 0; k < Integer.parseInt(w[5 + 2 * i]); k++) {
+                        worker.storage.append(w[4 + 2 * i].charAt(0));
+                    }
+                }
+                workers.add(worker);
+            }
+            placeEnemies(0);
+        }
+        else {
+            for (int i = 0; i < grid.cells; i++) {
+                map[i] = random.nextDouble() < hills ? '#' : '.';
+            }
+            for (int i = 0; i < numWorkers; i++) {
+                workers.add(new Worker(i + 1, C, random.nextInt(A), random.nextInt(A)));
+                enemies.add(new Worker(0, 'B', random.nextInt(A), random.nextInt(A)));
+                enemies.add(new Worker(0, 'C', random.nextInt(A), random.nextInt(A)));
+            }
+            for (Worker worker : workers) {
+                map[grid.cell(worker.x, worker.y)] = '.';
+            }
+        }
+    }
+
+    private void placeEnemies(int t)
+    {
+        if (t >= recording.enemies.size()) {
+            return;
+        }
+        enemies.clear();
+        for (String line : recording.enemies.get(t)) {
+            final String[] e = line.split(" ");
+            enemies.add(new Worker(0, e[0].charAt(0), Integer.parseInt(e[1]), Integer.parseInt(e[2])));
+        }
+    }
+
+    private Worker findWorker(int id)
+    {
+        for (Worker worker : workers) {
+            if (worker.id == id) {
+                return worker;
+            }
+        }
+        return null;
+    }
+
+    private int workersAt(int x, int y)
+    {
+        int n = 0;
+        for (Worker worker : workers) {
+            n += worker.x == x && worker.y == y ? 1 : 0;
+        }
+        for (Worker worker : enemies) {
+            n += worker.x == x && worker.y == y ? 1 : 0;
+        }
+        return n;
+    }
+
+    private void place(int x, int y, char colour)
+    {
+        map[grid.cell(x, y)] = colour;
+        expiresAt[grid.cell(x, y)] = turn + F;
+        placed.add(new int[] {x, y, colour});
+    }
+
+    private void clearCell(int cell)
+    {
+        map[cell] = '.';
+        expiresAt[cell] = -1;
+    }
+
+    /**
+     * Carry out one command, writing its reply. Returns false once the client should be let go.
+     */
+    private boolean execute(String line, PrintWriter out)
+    {
+        final String[] args = line.trim().split(" +");
+        if (++commandsThisTurn > L && L > 0 && !args[0].equals("WAIT")) {
+            out.println("FAILED 6 Command limit exceeded");
+            return true;
+        }
+        totalCommands++;
+        switch (args[0]) {
+        case "DESCRIBE_WORLD":
+            out.println("OK");
+            out.println(description);
+            break;
+        case "SHOW_MAP":
+            out.println("OK");
+            out.println(A);
+            for (int y = 0; y < A; y++) {
+                out.println(new String(map, grid.cell(0, y), A));
+            }
+            for (int y = 0; y < A; y++) {
+                final StringBuilder row = new StringBuilder();
+                for (int x = 0; x < A; x++) {
+                    final int cell = grid.cell(x, y);
+                    row.append(x == 0 ? "" : " ").append(expiresAt[cell] < 0 ? -1 : expiresAt[cell] - turn);
+                }
+                out.println(row);
+            }
+            break;
+        case "LIST_MY_WORKERS":
+            out.println("OK");
+            out.println(workers.size());
+            for (Worker worker : workers) {
+                final StringBuilder s = new StringBuilder();
+                int groups = 0;
+                for (char c = 'A'; c <= 'Z'; c++) {
+                    int n = 0;
+                    for (int i = 0; i < worker.storage.length(); i++) {
+                        n += worker.storage.charAt(i) == c ? 1 : 0;
+                    }
+                    if (n > 0) {
+                        s.append(' ').append(c).append(' ').append(n);
+                        groups++;
+                    }
+                }
+                out.println(worker.id + " " + worker.x + " " + worker.y + " " + groups + s);
+            }
+            break;
+        case "LIST_ENEMY_WORKERS":
+            out.println("OK");
+            out.println(enemies.size());
+            for (Worker enemy : enemies) {
+                out.println(enemy.colour + " " + enemy.x + " " + enemy.y);
+            }
+            break;
+        case "TIME_TO_END":
+            out.println("OK");
+            out.println((turns - turn) + " " + turnNanos / 1000000);
+            break;
+        case "SHOW_HISTORY":
+            out.println("OK");
+            for (String s : history) {
+                out.println(s);
+            }
+            break;
+        case "LAST_SCORE": {
+            out.println("OK");
+            final StringBuilder s = new StringBuilder();
+            int n = 0;
+            for (char c = 'A'; c <= 'Z'; c++) {
+                if (lastScore[c] != 0 || c == C) {
+                    s.append(' ').append(c).append(' ').append(lastScore[c]);
+                    n++;
+                }
+            }
+            out.println(n + s.toString());
+            break;
+        }
+        case "MOVE":
+            out.println(move(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3])));
+            break;
+        case "PUT":
+            out.println(put(Integer.parseInt(args[1]), args[2].charAt(0)));
+            break;
+        case "SCORE":
+            out.println(score(Integer.parseInt(args[1]), Integer.parseInt(args[2])));
+            break;
+        case "WAIT": {
+            turnTimes[turn] = System.nanoTime();
+            out.println("OK");
+            final long end = turnStart + turnNanos;
+            out.println(String.format(Locale.ROOT, "WAITING %.6f", Math.max(0, (end - System.nanoTime()) / 1e9)));
+            out.flush();
+            while (System.nanoTime() < end) {
+                try {
+                    Thread.sleep(Math.max(1, (end - System.nanoTime()) / 1000000));
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            turnTimes[turn] -= turnStart;
+            endTurn();
+            if (turn == turns) {
+                return false;
+            }
+            out.println("OK");
+            turnStart = System.nanoTime();
+            break;
+        }
+        default:
+            out.println("FAILED 1 Unknown command " + args[0]);
+            break;
+        }
+        return true;
+    }
+
+    private String move(int id, int dx, int dy)
+    {
+        final Worker worker = findWorker(id);
+        if (worker == null) {
+            return "FAILED 3 No such worker";
+        }
+        if (Math.abs(dx) + Math.abs(dy) != 1 && !(lenient && dx == 0 && dy == 0)) {
+            return "FAILED 4 Bad move";
+        }
+        if (worker.moved && !lenient) {
+            return "FAILED 5 Worker has already moved";
+        }
+        final int x = grid.wrap(worker.x + dx), y = grid.wrap(worker.y + dy);
+        if (map[grid.cell(x, y)] == '#' && !B) {
+            return "FAILED 4 Hill in the way";
+        }
+        worker.x = x;
+        worker.y = y;
+        worker.moved = true;
+        return "OK";
+    }
+
+    private String put(int id, char colour)
+    {
+        final Worker worker = findWorker(id);
+        if (worker == null) {
+            return "FAILED 3 No such worker";
+        }
+        final int cell = grid.cell(worker.x, worker.y);
+        if (worker.put && !lenient) {
+            return "FAILED 5 Worker has already put";
+        }
+        if (map[cell] == '#' || workersAt(worker.x, worker.y) > 1) {
+            return "FAILED 7 Cannot put here";
+        }
+        if (colour == C) {
+            if (map[cell] == C) {
+                return "FAILED 7 Already ours";
+            }
+            if (map[cell] != '.') {
+                if (worker.storage.length() >= G) {
+                    return "FAILED 8 Storage full";
+                }
+                worker.storage.append(map[cell]);
+            }
+        }
+        else {
+            final int index = worker.storage.indexOf(String.valueOf(colour));
+            if (index < 0 || map[cell] != '.') {
+                return "FAILED 8 Cannot dump " + colour + " here";
+            }
+            worker.storage.deleteCharAt(index);
+        }
+        worker.put = true;
+        place(worker.x, worker.y, colour);
+        return "OK";
+    }
+
+    private String score(int x, int y)
+    {
+        if (x < 0 || y < 0 || x >= A || y >= A || map[grid.cell(x, y)] != C) {
+            return "FAILED 9 No post of ours at " + x + " " + y;
+        }
+        scores.add(new int[] {x, y});
+        return "OK";
+    }
+
+    /**
+     * Harvest the fence through the post at {@code start}, adding the cells to clear to
+     * {@code clear} and returning the number of gaps it encloses. This is the same fill that the
+     * client does on the whole board in getHarvest.
+     */
+    private int harvest(int start, List<Integer> clear)
+    {
+        final boolean[] post = new boolean[grid.cells];
+        final int[] queue = grid.queue;
+        post[start] = true;
+        queue[0] = start;
+        int qt = 0;
+        int qh = 1;
+        while (qt < qh) {
+            final int cur = queue[qt++];
+            for (int c = 0; c < 4; c++) {
+                final int next = grid.neighbour[4 * cur + c];
+                if (map[next] == map[start] && !post[next]) {
+                    post[next] = true;
+                    queue[qh++] = next;
+                }
+            }
+        }
+
+        final boolean[] reached = new boolean[grid.cells];
+        queue[0] = grid.cell(0, 0);
+        reached[queue[0]] = true;
+        qt = 0;
+        qh = 1;
+        while (qt < qh) {
+            final int cur = queue[qt++];
+            for (int c = 0; c < 4; c++) {
+                final int k = 4 * cur + c;
+                final int next = grid.gapNeighbour[k];
+                if (!(post[grid.fencePost1[k]] && post[grid.fencePost2[k]]) && !reached[next]) {
+                    reached[next] = true;
+                    queue[qh++] = next;
+                }
+            }
+        }
+
+        final boolean inside = qh < A * A / 2;
+        final int period = A - 1;
+        int enclosed = 0;
+        for (int gx = 0; gx < period; gx++) {
+            for (int gy = 0; gy < period; gy++) {
+                if (reached[grid.cell(gx, gy)] != inside) {
+                    continue;
+                }
+                enclosed++;
+                for (int c = 0; c < 4; c++) {
+                    final int px = gx + (c & 1), py = gy + (c >> 1);
+                    final int corner = grid.cell(px, py);
+                    boolean perimeter = false;
+                    for (int g = 0; g < 4 && post[corner]; g++) {
+                        final int ox = Math.floorMod(px - 1 + (g & 1), period);
+                        final int oy = Math.floorMod(py - 1 + (g >> 1), period);
+                        perimeter |= reached[grid.cell(ox, oy)] != inside;
+                    }
+                    if (perimeter || (H && map[corner] != '.' && map[corner] != '#')) {
+                        clear.add(corner);
+                    }
+                }
+            }
+        }
+        return enclosed;
+    }
+
+    private void endTurn()
+    {
+        // The other teams move, and may put markers down or score.
+        if (recording != null) {
+            if (turn < recording.histories.size()) {
+                final String[] h = recording.histories.get(turn);
+                final String[] gone = h[0].split(" ");
+                for (int i = 0; i < Integer.parseInt(gone[0]); i++) {
+                    final int cell = grid.cell(Integer.parseInt(gone[1 + 2 * i]), Integer.parseInt(gone[2 + 2 * i]));
+                    if (map[cell] != C && map[cell] != '#') {
+                        clearCell(cell);
+                        removed.add(new int[] {grid.x(cell), grid.y(cell)});
+                    }
+                }
+                final String[] put = h[1].split(" ");
+                for (int i = 0; i < Integer.parseInt(put[0]); i++) {
+                    final int x = Integer.parseInt(put[1 + 3 * i]), y = Integer.parseInt(put[2 + 3 * i]);
+                    final char colour = put[3 + 3 * i].charAt(0);
+                    if (colour != C && map[grid.cell(x, y)] != '#') {
+                        place(x, y, colour);
+                    }
+                }
+                final String[] scored = h[2].split(" ");
+                for (int i = 0; i < Integer.parseInt(scored[0]); i++) {
+                    final int x = Integer.parseInt(scored[1 + 2 * i]), y = Integer.parseInt(scored[2 + 2 * i]);
+                    final char colour = map[grid.cell(x, y)];
+                    if (colour != C && colour != '.' && colour != '#') {
+                        scores.add(new int[] {x, y});
+                    }
+                }
+            }
+            placeEnemies(turn + 1);
+        }
+        else {
+            for (Worker enemy : enemies) {
+                final int c = random.nextInt(4);
+                final int x = grid.wrap(enemy.x + Grid.DX[c]), y = grid.wrap(enemy.y + Grid.DY[c]);
+                if (map[grid.cell(x, y)] != '#' || B) {
+                    enemy.x = x;
+                    enemy.y = y;
+                }
+                if (map[grid.cell(enemy.x, enemy.y)] == '.' && random.nextInt(4) == 0) {
+                    place(enemy.x, enemy.y, enemy.colour);
+                }
+            }
+        }
+
+        // Harvests are all worked out on the board as it stands at the end of the turn.
+        Arrays.fill(lastScore, 0);
+        final List<Integer> clear = new ArrayList<>();
+        final StringBuilder harvested = new StringBuilder();
+        int numHarvested = 0;
+        for (int[] s : scores) {
+            final int cell = grid.cell(s[0], s[1]);
+            final char colour = map[cell];
+            if (colour == '.' || colour == '#' || clear.contains(cell)) {
+                continue;
+            }
+            final int gaps = harvest(cell, clear);
+            lastScore[colour] += gaps;
+            totalScore[colour] += gaps;
+            harvested.append(' ').append(s[0]).append(' ').append(s[1]);
+            numHarvested++;
+        }
+        for (int cell : clear) {
+            clearCell(cell);
+        }
+
+        final StringBuilder gone = new StringBuilder().append(removed.size());
+        for (int[] r : removed) {
+            gone.append(' ').append(r[0]).append(' ').append(r[1]);
+        }
+        final StringBuilder put = new StringBuilder().append(placed.size());
+        for (int[] p : placed) {
+            put.append(' ').append(p[0]).append(' ').append(p[1]).append(' ').append((char) p[2]);
+        }
+        history = new String[] {gone.toString(), put.toString(), numHarvested + harvested.toString()};
+        removed.clear();
+        placed.clear();
+        scores.clear();
+
+        // Markers that have had their time go at the end of it, the client working that out for
+        // itself.
+        for (int i = 0; i < grid.cells; i++) {
+            if (expiresAt[i] == turn) {
+                clearCell(i);
+            }
+        }
+        for (Worker worker : workers) {
+            worker.moved = false;
+            worker.put = false;
+        }
+        commandsThisTurn = 0;
+        turn++;
+    }
+
+    /**
+     * Serve one client until the last turn is over.
+     */
+    void serve(Socket socket)
+        throws IOException
+    {
+        socket.setTcpNoDelay(true);
+        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+        final PrintWriter out = new PrintWriter(writer, false);
+        out.println("PROXY-NOLOGIN");
+        out.flush();
+        turnStart = System.nanoTime();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            if (!execute(line, out)) {
+                break;
+            }
+            // Replies to a batch of commands go back in one write.
+            if (!in.ready()) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Connections to this simulator that never leave the JVM, for driving a client from the
+     * benchmarks. Each command is carried out as soon as it is written, and its reply waits to be
+     * read.
+     */
+    Transport.Factory inMemory()
+    {
+        return InMemoryTransport::new;
+    }
+
+    private class InMemoryTransport
+        implements Transport
+    {
+        private final StringBuilder command = new StringBuilder();
+        private final CharArrayWriter replies = new CharArrayWriter();
+        private final PrintWriter out = new PrintWriter(replies);
+        private char[] pending = new char[0];
+        private int read = 0;
+
+        InMemoryTransport()
+        {
+            out.println("PROXY-NOLOGIN");
+        }
+
+        public int read(byte[] buffer, int offset, int length)
+        {
+            if (read == pending.length) {
+                out.flush();
+                pending = replies.toCharArray();
+                replies.reset();
+                read = 0;
+                if (pending.length == 0) {
+                    return -1;
+                }
+            }
+            final int n = Math.min(length, pending.length - read);
+            for (int i = 0; i < n; i++) {
+                buffer[offset + i] = (byte) pending[read++];
+            }
+            return n;
+        }
+
+        public void write(byte[] buffer, int offset, int length)
+        {
+            for (int i = offset; i < offset + length; i++) {
+                if (buffer[i] != '\n') {
+                    command.append((char) buffer[i]);
+                }
+                else if (command.length() > 0) {
+                    execute(command.toString(), out);
+                    command.setLength(0);
+                }
+            }
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    void printSummary()
+    {
+        final long[] times = Arrays.copyOf(turnTimes, turn);
+        Arrays.sort(times);
+        System.err.println("Played " + turn + " turns of " + turnNanos / 1000000 + "ms");
+        if (turn > 0) {
+            long total = 0;
+            for (long t : times) {
+                total += t;
+            }
+            System.err.printf("Client time per turn: mean %.3fms, median %.3fms, 99th percentile %.3fms, max %.3fms%n",
+                              total / 1e6 / turn, times[turn / 2] / 1e6, times[Math.min(turn - 1, turn * 99 / 100)] / 1e6, times[turn - 1] / 1e6);
+            System.err.printf("Commands per turn: %.1f%n", (double) totalCommands / turn);
+        }
+        final StringBuilder s = new StringBuilder("Scores:");
+        for (char c = 'A'; c <= 'Z'; c++) {
+            if (totalScore[c] != 0 || c == C) {
+                s.append(' ').append(c).append(' ').append(totalScore[c]);
+            }
+        }
+        System.err.println(s);
+    }
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        String replay = null;
+        int size = 50, numWorkers = 4, turns = 1000, turnMillis = 100, port = 20003, play = Integer.MIN_VALUE;
+        double hills = 0.05;
+        long seed = 1;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--replay": replay = args[++i]; break;
+            case "--size": size = Integer.parseInt(args[++i]); break;
+            case "--workers": numWorkers = Integer.parseInt(args[++i]); break;
+            case "--hills": hills = Double.parseDouble(args[++i]); break;
+            case "--seed": seed = Long.parseLong(args[++i]); break;
+            case "--turns": turns = Integer.parseInt(args[++i]); break;
+            case "--turn-millis": turnMillis = Integer.parseInt(args[++i]); break;
+            case "--port": port = Integer.parseInt(args[++i]); break;
+            case "--play": play = Integer.parseInt(args[++i]); break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        final GridSimulator simulator = new GridSimulator(replay != null ? Recording.read(replay) : null, size, numWorkers, hills, seed, turns, turnMillis, false);
+        try (ServerSocket server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+            System.err.println("Simulating on port " + port);
+            if (play != Integer.MIN_VALUE) {
+                final int index = play;
+                final int clientPort = port;
+                final Thread player = new Thread(() -> {
+                    try {
+                        final Client client = new Client("grid" + index, null, null, "localhost", clientPort, 0);
+                        client.setReconnectAttempts(0);
+                        AGridCulture.play(client, new AGridCulture(client, index), false);
+                    }
+                    catch (Exception e) {
+                        System.err.println("Client stopped: " + e);
+                    }
+                }, "player");
+                player.setDaemon(true);
+                player.start();
+            }
+            try (Socket socket = server.accept()) {
+                simulator.serve(socket);
+            }
+        }
+        simulator.printSummary();
+    }
+}
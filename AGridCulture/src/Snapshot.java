@@ -0,0 +1,92 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A small binary record kept in a memory-mapped file and rewritten in place. Writing it is just
+ * stores into the page cache, which outlive the process, so it can be done every turn; a checksum
+ * over the record tells us on loading if the process died half way through one.
+ */
+class Snapshot
+{
+    private static final int MAGIC = 0x41474331;
+    // The magic number, the length of the record and its checksum.
+    private static final int HEADER = 12;
+
+    private final File myFile;
+    private FileChannel myChannel;
+    private MappedByteBuffer myBuffer;
+    private final CRC32 myChecksum = new CRC32();
+
+    Snapshot(File file)
+    {
+        myFile = file;
+    }
+
+    private void map(int size)
+        throws IOException
+    {
+        if (myChannel == null) {
+            myChannel = FileChannel.open(myFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        if (myBuffer == null || myBuffer.capacity() < size) {
+            myBuffer = myChannel.map(FileChannel.MapMode.READ_WRITE, 0, (size + 4095) & ~4095);
+        }
+    }
+
+    /**
+     * Start a new record of at most {@code length} bytes, returning the buffer to write it into.
+     */
+    ByteBuffer begin(int length)
+        throws IOException
+    {
+        map(HEADER + length);
+        // Spoil the old record first, so that if we die while writing this one neither loads.
+        myBuffer.putInt(0, 0);
+        myBuffer.limit(myBuffer.capacity());
+        myBuffer.position(HEADER);
+        return myBuffer;
+    }
+
+    /**
+     * Seal the record written since begin.
+     */
+    void commit()
+    {
+        final int length = myBuffer.position() - HEADER;
+        final ByteBuffer record = myBuffer.duplicate();
+        record.position(HEADER);
+        record.limit(HEADER + length);
+        myChecksum.reset();
+        myChecksum.update(record);
+        myBuffer.putInt(4, length);
+        myBuffer.putInt(8, (int) myChecksum.getValue());
+        myBuffer.putInt(0, MAGIC);
+    }
+
+    /**
+     * The last record committed, or null if there is none or it didn't get finished.
+     */
+    ByteBuffer load()
+        throws IOException
+    {
+        if (myFile.length() < HEADER) {
+            return null;
+        }
+        map((int) myFile.length());
+        final int length = myBuffer.getInt(4);
+        if (myBuffer.getInt(0) != MAGIC || length < 0 || length > myBuffer.capacity() - HEADER) {
+            return null;
+        }
+        final ByteBuffer record = myBuffer.duplicate();
+        record.position(HEADER);
+        record.limit(HEADER + length);
+        myChecksum.reset();
+        myChecksum.update(record.duplicate());
+        return (int) myChecksum.getValue() == myBuffer.getInt(8) ? record : null;
+    }
+}
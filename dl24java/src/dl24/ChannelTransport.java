@@ -0,0 +1,90 @@
+package dl24;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport over a {@link SocketChannel} using direct buffers, so bytes go between the socket and
+ * the client's ASCII buffers without passing through a charset decoder or an extra heap copy inside
+ * the JDK streams. Given an {@link EventLoop} the channel is non-blocking and waits are parked on
+ * the loop's selector; otherwise it is an ordinary blocking channel.
+ */
+public class ChannelTransport
+    implements Transport
+{
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final SocketChannel myChannel;
+    private final EventLoop myLoop;
+    private final EventLoop.Waiter myWaiter;
+    private final ByteBuffer myReadBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer myWriteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public ChannelTransport(String host, int port)
+        throws IOException
+    {
+        this(host, port, null);
+    }
+
+    public ChannelTransport(String host, int port, EventLoop loop)
+        throws IOException
+    {
+        myChannel = SocketChannel.open(new InetSocketAddress(host, port));
+        myChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        myLoop = loop;
+        if (loop != null) {
+            myChannel.configureBlocking(false);
+            myWaiter = new EventLoop.Waiter(myChannel);
+        }
+        else {
+            myWaiter = null;
+        }
+        myReadBuffer.flip();
+    }
+
+    public int read(byte[] buffer, int offset, int length)
+        throws IOException
+    {
+        if (!myReadBuffer.hasRemaining()) {
+            myReadBuffer.clear();
+            int n;
+            while ((n = myChannel.read(myReadBuffer)) == 0) {
+                myLoop.await(myWaiter, SelectionKey.OP_READ);
+            }
+            myReadBuffer.flip();
+            if (n < 0) {
+                return -1;
+            }
+        }
+        final int n = Math.min(length, myReadBuffer.remaining());
+        myReadBuffer.get(buffer, offset, n);
+        return n;
+    }
+
+    public void write(byte[] buffer, int offset, int length)
+        throws IOException
+    {
+        while (length > 0) {
+            final int n = Math.min(length, myWriteBuffer.remaining());
+            myWriteBuffer.put(buffer, offset, n);
+            offset += n;
+            length -= n;
+            myWriteBuffer.flip();
+            while (myWriteBuffer.hasRemaining()) {
+                if (myChannel.write(myWriteBuffer) == 0) {
+                    myLoop.await(myWaiter, SelectionKey.OP_WRITE);
+                }
+            }
+            myWriteBuffer.clear();
+        }
+    }
+
+    public void close()
+        throws IOException
+    {
+        myChannel.close();
+    }
+}
@@ -1,36 +1,64 @@
 package dl24;
-import java.io.BufferedReader;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
-import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.Histogram;
-import io.prometheus.client.Summary;
-import io.prometheus.client.exporter.MetricsServlet;
-
-import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.servlet.ServletHandler;
-import org.eclipse.jetty.servlet.ServletHolder;
-
 public class Client
 {
-    private final Socket mySocket;
-    private final PrintWriter myWriter;
-    private final BufferedReader myReader;
+    private final Transport.Factory myTransportFactory;
+    private Transport myTransport;
+    private LineReader myReader;
+
+    // Kept for logging in again after a reconnect.
+    private final String myUsername;
+    private final String myPassword;
+    private boolean myConnecting = false;
+    private int myReconnectAttempts = 10;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    // Outgoing bytes, sent to the transport as a single write per flush.
+    private byte[] myOutput = new byte[4096];
+    private int myOutputFill = 0;
 
-    private final Map<String,Summary> mySummaries;
+    private final Metrics myMetrics;
+    private final boolean myOwnsMetrics;
 
-    private final Histogram commandTime;
+    private final Map<String,Expectation> myExpectations = new HashMap<>();
 
-    private final Server myPrometheusServer;
-    private final CollectorRegistry registry;
+    // Command words for the typed encoders, and their pre-resolved timing series.
+    private static final byte[] MOVE = ascii("MOVE");
+    private static final byte[] PUT = ascii("PUT");
+    private static final byte[] SCORE = ascii("SCORE");
+    private final Histogram.Child myMoveTime;
+    private final Histogram.Child myPutTime;
+    private final Histogram.Child myScoreTime;
+    // The other series, resolved the first time each is needed so that later updates are a lookup
+    // at most.
+    private final Map<String,Histogram.Child> myCommandTimes = new HashMap<>();
+    private final Map<String,Histogram.Child> myPhaseTimes = new HashMap<>();
+    private final Map<String,Summary.Child> mySummaries = new HashMap<>();
+    private final Counter.Child myReconnectCount;
+    private final Counter.Child mySearchedCellCount;
+    private final Counter.Child myAllocatedByteCount;
     
     private int commandsUsed = 0;
+
+    // Per-turn command limit, counting the WAIT that ends the turn; 0 means no limit.
+    private int myCommandLimit = 0;
+    // Queued commands not yet sent, by CommandClass ordinal. These are the ones that can be dropped.
+    private final int[] myQueuedByClass = new int[CommandClass.values().length];
+    private boolean myBudgetExhausted = false;
+    private final Counter.Child myBudgetExhaustedCount;
+    private final Counter.Child[] myDroppedCount = new Counter.Child[CommandClass.values().length];
+
+    // Reply slots for the current batch of queueCommand calls. Slots up to myNumRead have had their
+    // replies read; the batch is closed (and the slots become reusable) by flushCommands.
+    private static final int MAX_IN_FLIGHT = 256;
+    private Reply[] myPending = new Reply[16];
+    private int myNumQueued = 0;
+    private int myNumRead = 0;
+    private boolean myBatchClosed = false;
     
     private final String appName;
     
@@ -42,51 +70,227 @@ public class Client
                   int prometheusPort)
         throws IOException, ProtocolException
     {
-        this.appName = appName;
-        mySocket = new Socket(host, port);
-        mySocket.setTcpNoDelay(true);
-        myWriter = new PrintWriter(mySocket.getOutputStream());
-        myReader = new BufferedReader(new InputStreamReader(mySocket.getInputStream()));
+        this(appName, username, password, host, port, prometheusPort, false);
+    }
+
+    /**
+     * @param nio use a {@link ChannelTransport} rather than a plain socket
+     */
+    public Client(String appName,
+                  String username,
+                  String password,
+                  String host,
+                  int port,
+                  int prometheusPort,
+                  boolean nio)
+        throws IOException, ProtocolException
+    {
+        this(appName,
+             username,
+             password,
+             () -> nio ? new ChannelTransport(host, port) : new StreamTransport(host, port),
+             prometheusPort > 0 ? new Metrics(prometheusPort) : null,
+             true);
+    }
 
-        if (readLine("LOGIN|PROXY-NOLOGIN").equals("LOGIN")) {
-            if (username == null) {
-                username = System.getenv("DL24_USER");
+    /**
+     * Create a client that shares an event loop and metrics endpoint with other clients in the same
+     * JVM. Either may be null: without a loop the client uses a blocking socket, and without metrics
+     * nothing is recorded.
+     */
+    public Client(String appName,
+                  String username,
+                  String password,
+                  String host,
+                  int port,
+                  Metrics metrics,
+                  EventLoop loop)
+        throws IOException, ProtocolException
+    {
+        this(appName,
+             username,
+             password,
+             () -> loop != null ? new ChannelTransport(host, port, loop) : new StreamTransport(host, port),
+             metrics,
+             false);
+    }
+
+    /**
+     * Create a client over connections from the given factory rather than a socket, for a server
+     * in the same JVM for instance. The server must let us in without a login. Metrics may be null.
+     */
+    public Client(String appName,
+                  Transport.Factory transportFactory,
+                  Metrics metrics)
+        throws IOException, ProtocolException
+    {
+        this(appName, null, null, transportFactory, metrics, false);
+    }
+
+    private Client(String appName,
+                   String username,
+                   String password,
+                   Transport.Factory transportFactory,
+                   Metrics metrics,
+                   boolean ownsMetrics)
+        throws IOException, ProtocolException
+    {
+        this.appName = appName;
+        myTransportFactory = transportFactory;
+        myUsername = username != null ? username : System.getenv("DL24_USER");
+        myPassword = password != null ? password : System.getenv("DL24_PASS");
+        myMetrics = metrics;
+        myOwnsMetrics = ownsMetrics;
+        myMoveTime = commandTime("MOVE");
+        myPutTime = commandTime("PUT");
+        myScoreTime = commandTime("SCORE");
+        if (myMetrics != null) {
+            myBudgetExhaustedCount = myMetrics.budgetExhausted.labels(appName);
+            myReconnectCount = myMetrics.reconnects.labels(appName);
+            mySearchedCellCount = myMetrics.searchedCells.labels(appName);
+            myAllocatedByteCount = myMetrics.allocatedBytes.labels(appName);
+            for (CommandClass commandClass : CommandClass.values()) {
+                myDroppedCount[commandClass.ordinal()] = myMetrics.commandsDropped.labels(appName, commandClass.name().toLowerCase());
             }
-            if (password == null) {
-                password = System.getenv("DL24_PASS");
+        }
+        else {
+            myBudgetExhaustedCount = null;
+            myReconnectCount = null;
+            mySearchedCellCount = null;
+            myAllocatedByteCount = null;
+        }
+        connect();
+    }
+
+    private void connect()
+        throws IOException, ProtocolException
+    {
+        myConnecting = true;
+        try {
+            myTransport = myTransportFactory.open();
+            myReader = new LineReader(myTransport);
+            if (readLine("LOGIN|PROXY-NOLOGIN").equals("LOGIN")) {
+                writeLine(myUsername);
+                readLine("PASS");
+                writeLine(myPassword);
+                readOk();
             }
-            writeLine(username);
-            readLine("PASS");
-            writeLine(password);
-            readOk();
+        }
+        finally {
+            myConnecting = false;
+        }
+    }
+
+    /**
+     * Number of times to try to reconnect, with exponential backoff, when the connection drops.
+     * Zero turns reconnecting off, so that the original I/O error is thrown.
+     */
+    public void setReconnectAttempts(int attempts)
+    {
+        myReconnectAttempts = attempts;
+    }
+
+    /**
+     * Called with the error that broke the connection. Returns the exception to throw: a
+     * {@link ReconnectedException} if we managed to reconnect and log in again, or the original
+     * error if not.
+     */
+    private IOException connectionLost(IOException cause)
+    {
+        if (myConnecting || myReconnectAttempts <= 0) {
+            return cause;
         }
 
-        if (prometheusPort > 0) {
-            // Start an HTTP server to expose Prometheus metrics.
-            registry = new CollectorRegistry();
-            myPrometheusServer = new Server(prometheusPort);
-            ServletHandler handler = new ServletHandler();
-            myPrometheusServer.setHandler(handler);
-            handler.addServletWithMapping(new ServletHolder(new MetricsServlet(registry)), "/metrics");
+        // Whatever was in flight went with the connection.
+        abandonPending();
+        myOutputFill = 0;
+        commandsUsed = 0;
+        Arrays.fill(myQueuedByClass, 0);
+        try {
+            myTransport.close();
+        }
+        catch (IOException e) {
+            // It was broken anyway.
+        }
+
+        long backoff = 100;
+        for (int attempt = 1; attempt <= myReconnectAttempts; attempt++) {
+            System.err.println("Connection lost (" + cause + "); reconnecting in " + backoff + "ms, attempt " + attempt);
             try {
-                myPrometheusServer.start();
+                Thread.sleep(backoff);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cause.addSuppressed(e);
+                return cause;
             }
-            catch (Exception e) {
-                throw new IOException("Failed to start HTTP server", e);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            try {
+                connect();
+                if (myMetrics != null) {
+                    myReconnectCount.inc();
+                }
+                return new ReconnectedException(cause);
+            }
+            catch (IOException | ProtocolException e) {
+                if (myTransport != null) {
+                    try {
+                        myTransport.close();
+                    }
+                    catch (IOException ce) {
+                        // Never mind.
+                    }
+                }
+                cause.addSuppressed(e);
             }
-            
-            // Create a store for our per-command metrics.
-            mySummaries = new HashMap<>();
-            commandTime = Histogram.build().labelNames("command").name("dl24_command_time_seconds").help("Time between issuing command and receiving reply").register(registry);
         }
-        else {
-            mySummaries = null;
-            commandTime = null;
-            myPrometheusServer = null;
-            registry = null;
+        return cause;
+    }
+
+    private void abandonPending()
+    {
+        for (int i = myNumRead; i < myNumQueued; i++) {
+            if (!myPending[i].isDone()) {
+                myPending[i].complete(new ProtocolException(myPending[i].getCommand() + " lost with the connection"));
+            }
+        }
+        myNumRead = myNumQueued;
+        myBatchClosed = true;
+    }
+
+    private void nextLine()
+        throws IOException
+    {
+        try {
+            myReader.nextLine();
+        }
+        catch (IOException e) {
+            throw connectionLost(e);
         }
     }
     
+    private static byte[] ascii(String s)
+    {
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    private Histogram.Child commandTime(String command)
+    {
+        if (myMetrics == null) {
+            return null;
+        }
+        Histogram.Child time = myCommandTimes.get(command);
+        if (time == null) {
+            time = myMetrics.commandTime.labels(appName, command);
+            myCommandTimes.put(command, time);
+        }
+        return time;
+    }
+
     public void readOk()
         throws IOException, ProtocolException
     {
@@ -102,86 +306,530 @@ public class Client
     public String readLine(String expectedRegex)
         throws IOException, ProtocolException
     {
-        final String line = myReader.readLine();
-        if (line == null) {
-            // End of stream.
-            throw new EOFException();
+        nextLine();
+        if (expectedRegex == null) {
+            return myReader.lineString();
+        }
+        Expectation expectation = myExpectations.get(expectedRegex);
+        if (expectation == null) {
+            expectation = new Expectation(expectedRegex);
+            myExpectations.put(expectedRegex, expectation);
         }
-        if (expectedRegex != null && !line.matches(expectedRegex)) {
-            throw new ProtocolException("Expected line of the form '" + expectedRegex + "' but got '" + line + "'");
+        if (!expectation.matches(myReader)) {
+            if (myMetrics != null) {
+                myMetrics.protocolMismatches.labels(appName, expectedRegex).inc();
+            }
+            throw new ProtocolException("Expected line of the form '" + expectedRegex + "' but got '" + myReader.lineString() + "'");
+        }
+        else if (expectation.getLiteral() != null) {
+            // Same characters as the line, without copying it.
+            return expectation.getLiteral();
         }
         else {
-            return line;
+            return myReader.lineString();
         }
     }
     
+    /**
+     * Read the next line and return the reader positioned at its start, for callers that want to
+     * parse the tokens in place rather than through a String. The line is only valid until the next
+     * read from this client.
+     */
+    public LineReader readTokens()
+        throws IOException
+    {
+        nextLine();
+        return myReader;
+    }
+    
     public void writeCommand(String command, Object... args)
         throws IOException, ProtocolException
     {
-        final Histogram.Timer timer;
-        if (commandTime != null) {
-            timer = commandTime.labels(command).startTimer();
-        }
-        else {
-            timer = null;
+        // Replies arrive in order, so anything already queued has to be drained first. WAIT goes in
+        // the slot that the limit keeps back for it.
+        readReplies(command.equals("WAIT") ? 0 : 1, CommandClass.of(command));
+
+        final long start = System.nanoTime();
+        append(command);
+        appendArgs(args);
+        sendCommand(commandTime(command), start);
+    }
+
+    /**
+     * MOVE a worker by (dx, dy) and wait for the reply. Like the other typed commands below, this
+     * writes its arguments straight into the output buffer without boxing or building a String.
+     */
+    public void move(int id, int dx, int dy)
+        throws IOException, ProtocolException
+    {
+        readReplies(1, CommandClass.MOVE);
+        final long start = System.nanoTime();
+        appendMove(id, dx, dy);
+        sendCommand(myMoveTime, start);
+    }
+
+    public void put(int id, char c)
+        throws IOException, ProtocolException
+    {
+        readReplies(1, CommandClass.PUT);
+        final long start = System.nanoTime();
+        appendPut(id, c);
+        sendCommand(myPutTime, start);
+    }
+
+    public void score(int x, int y)
+        throws IOException, ProtocolException
+    {
+        readReplies(1, CommandClass.SCORE);
+        final long start = System.nanoTime();
+        appendScore(x, y);
+        sendCommand(myScoreTime, start);
+    }
+
+    /**
+     * Queued form of {@link #move}; see {@link #queueCommand}.
+     */
+    public Reply queueMove(int id, int dx, int dy)
+        throws IOException
+    {
+        final Reply reply = nextReply("MOVE", CommandClass.MOVE, myMoveTime);
+        appendMove(id, dx, dy);
+        return reply;
+    }
+
+    public Reply queuePut(int id, char c)
+        throws IOException
+    {
+        final Reply reply = nextReply("PUT", CommandClass.PUT, myPutTime);
+        appendPut(id, c);
+        return reply;
+    }
+
+    public Reply queueScore(int x, int y)
+        throws IOException
+    {
+        final Reply reply = nextReply("SCORE", CommandClass.SCORE, myScoreTime);
+        appendScore(x, y);
+        return reply;
+    }
+
+    private void appendMove(int id, int dx, int dy)
+    {
+        append(MOVE);
+        append(' ');
+        append(id);
+        append(' ');
+        append(dx);
+        append(' ');
+        append(dy);
+        append('\n');
+    }
+
+    private void appendPut(int id, char c)
+    {
+        append(PUT);
+        append(' ');
+        append(id);
+        append(' ');
+        append(c);
+        append('\n');
+    }
+
+    private void appendScore(int x, int y)
+    {
+        append(SCORE);
+        append(' ');
+        append(x);
+        append(' ');
+        append(y);
+        append('\n');
+    }
+
+    private void appendArgs(Object[] args)
+    {
+        for (Object arg : args) {
+            append(' ');
+            if (arg instanceof Integer) {
+                append(((Integer) arg).intValue());
+            }
+            else if (arg instanceof Character) {
+                append(((Character) arg).charValue());
+            }
+            else {
+                append(arg.toString());
+            }
         }
+        append('\n');
+    }
+
+    private void sendCommand(Histogram.Child time, long start)
+        throws IOException, ProtocolException
+    {
         try {
-            StringBuilder sb = new StringBuilder();
-            sb.append(command);
-            for (Object arg : args) {
-                sb.append(' ');
-                sb.append(arg.toString());
-            }
-            writeLine(sb.toString());
+            flushOutput();
             commandsUsed++;
             readOk();
         }
         finally {
-            if (timer != null) {
-                timer.observeDuration();
+            if (time != null) {
+                time.observe((System.nanoTime() - start) / 1e9);
+            }
+        }
+    }
+
+    /**
+     * Write a command without waiting for its reply. Queued commands are sent in a single write by
+     * {@link #flushCommands}, which then matches the replies up in order. If by then the turn's
+     * command limit is exceeded, the lowest-class commands are dropped, latest first, and their
+     * replies report {@link Reply#isDropped}.
+     */
+    public Reply queueCommand(String command, Object... args)
+        throws IOException
+    {
+        final Reply reply = nextReply(command, CommandClass.of(command), commandTime(command));
+        append(command);
+        appendArgs(args);
+        return reply;
+    }
+
+    private Reply nextReply(String command, CommandClass commandClass, Histogram.Child time)
+        throws IOException
+    {
+        if (myBatchClosed) {
+            myNumQueued = 0;
+            myNumRead = 0;
+            myBatchClosed = false;
+        }
+        else if (myNumQueued - myNumRead == MAX_IN_FLIGHT) {
+            // Don't let an unbounded batch back up the server's send buffer.
+            readReplies(0, CommandClass.OTHER);
+        }
+        if (myNumQueued == myPending.length) {
+            myPending = Arrays.copyOf(myPending, myPending.length * 2);
+        }
+        Reply reply = myPending[myNumQueued];
+        if (reply == null) {
+            reply = myPending[myNumQueued] = new Reply();
+        }
+        reply.reset(command, commandClass, time, myOutputFill);
+        myNumQueued++;
+        myQueuedByClass[commandClass.ordinal()]++;
+        commandsUsed++;
+        return reply;
+    }
+
+    public void flushCommands()
+        throws IOException
+    {
+        try {
+            readReplies(0, CommandClass.OTHER);
+        }
+        finally {
+            myBatchClosed = true;
+        }
+    }
+
+    /**
+     * Set the number of commands allowed per turn, including the WAIT that ends it. Zero or less
+     * means there is no limit.
+     */
+    public void setCommandLimit(int limit)
+    {
+        myCommandLimit = limit;
+    }
+
+    public int getCommandLimit()
+    {
+        return myCommandLimit;
+    }
+
+    /**
+     * Whether a command of the given class still fits in this turn, keeping one command back for
+     * WAIT. Queued commands of a lower class don't count against it, since they will be dropped
+     * to make room if necessary.
+     */
+    public boolean canExecute(CommandClass commandClass)
+    {
+        if (myCommandLimit <= 0) {
+            return true;
+        }
+        int used = commandsUsed;
+        for (int c = 0; c < commandClass.ordinal(); c++) {
+            used -= myQueuedByClass[c];
+        }
+        if (used < myCommandLimit - 1) {
+            return true;
+        }
+        noteBudgetExhausted();
+        return false;
+    }
+
+    /**
+     * Commands left this turn, not counting the one kept back for WAIT.
+     */
+    public int getCommandsLeft()
+    {
+        if (myCommandLimit <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.max(0, myCommandLimit - 1 - commandsUsed);
+    }
+
+    private void noteBudgetExhausted()
+    {
+        if (!myBudgetExhausted) {
+            myBudgetExhausted = true;
+            if (myBudgetExhaustedCount != null) {
+                myBudgetExhaustedCount.inc();
+            }
+        }
+    }
+
+    /**
+     * Drop queued commands of classes below the given one until there is room for {@code reserve}
+     * more commands within the limit.
+     */
+    private void trimQueue(int reserve, CommandClass commandClass)
+    {
+        int excess = commandsUsed + reserve - (myCommandLimit - 1);
+        if (myCommandLimit <= 0 || excess <= 0) {
+            return;
+        }
+        noteBudgetExhausted();
+        boolean dropped = false;
+        for (int c = 0; c < commandClass.ordinal() && excess > 0; c++) {
+            for (int i = myNumQueued - 1; i >= myNumRead && excess > 0 && myQueuedByClass[c] > 0; i--) {
+                final Reply reply = myPending[i];
+                if (!reply.isDone() && reply.commandClass.ordinal() == c) {
+                    reply.drop();
+                    myQueuedByClass[c]--;
+                    commandsUsed--;
+                    excess--;
+                    dropped = true;
+                    if (myDroppedCount[c] != null) {
+                        myDroppedCount[c].inc();
+                    }
+                }
+            }
+        }
+        if (!dropped) {
+            return;
+        }
+
+        // Squeeze the dropped commands out of the output buffer. The unsent commands are always the
+        // tail of it, one after the other.
+        int to = myPending[myNumRead].start;
+        for (int i = myNumRead; i < myNumQueued; i++) {
+            final Reply reply = myPending[i];
+            final int end = i + 1 < myNumQueued ? myPending[i + 1].start : myOutputFill;
+            if (!reply.isDropped()) {
+                System.arraycopy(myOutput, reply.start, myOutput, to, end - reply.start);
+                final int length = end - reply.start;
+                reply.start = to;
+                to += length;
             }
         }
+        myOutputFill = to;
+    }
+
+    /**
+     * Send everything queued, after trimming it to leave room for {@code reserve} more commands of
+     * the given class, and read the replies.
+     */
+    private void readReplies(int reserve, CommandClass commandClass)
+        throws IOException
+    {
+        if (myNumRead == myNumQueued) {
+            return;
+        }
+        trimQueue(reserve, commandClass);
+        flushOutput();
+        Arrays.fill(myQueuedByClass, 0);
+        final long start = System.nanoTime();
+        try {
+            while (myNumRead < myNumQueued) {
+                final Reply reply = myPending[myNumRead];
+                if (reply.isDropped()) {
+                    myNumRead++;
+                    continue;
+                }
+                try {
+                    readOk();
+                    reply.complete(null);
+                }
+                catch (ProtocolException e) {
+                    reply.complete(e);
+                }
+                myNumRead++;
+                if (reply.time != null) {
+                    reply.time.observe((System.nanoTime() - start) / 1e9);
+                }
+            }
+        }
+        catch (IOException e) {
+            // The connection is gone, so the remaining replies will never arrive.
+            abandonPending();
+            throw e;
+        }
     }
 
     public void writeLine(String line)
+        throws IOException
+    {
+        append(line);
+        append('\n');
+        flushOutput();
+    }
+
+    private void append(char c)
+    {
+        if (myOutputFill == myOutput.length) {
+            myOutput = Arrays.copyOf(myOutput, myOutput.length * 2);
+        }
+        // The protocol is US-ASCII; anything else would be rejected by the server anyway.
+        myOutput[myOutputFill++] = (byte) (c < 0x80 ? c : '?');
+    }
+
+    private void append(byte[] bytes)
+    {
+        if (myOutputFill + bytes.length > myOutput.length) {
+            myOutput = Arrays.copyOf(myOutput, Math.max(myOutput.length * 2, myOutputFill + bytes.length));
+        }
+        System.arraycopy(bytes, 0, myOutput, myOutputFill, bytes.length);
+        myOutputFill += bytes.length;
+    }
+
+    private void append(int value)
+    {
+        // Sign plus the ten digits of Integer.MIN_VALUE.
+        if (myOutputFill + 11 > myOutput.length) {
+            myOutput = Arrays.copyOf(myOutput, myOutput.length * 2);
+        }
+        long v = value;
+        if (v < 0) {
+            myOutput[myOutputFill++] = '-';
+            v = -v;
+        }
+        final int start = myOutputFill;
+        do {
+            myOutput[myOutputFill++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        // Digits came out least significant first.
+        for (int i = start, j = myOutputFill - 1; i < j; i++, j--) {
+            final byte b = myOutput[i];
+            myOutput[i] = myOutput[j];
+            myOutput[j] = b;
+        }
+    }
+
+    private void append(String s)
+    {
+        for (int i = 0; i < s.length(); i++) {
+            append(s.charAt(i));
+        }
+    }
+
+    private void flushOutput()
+        throws IOException
     {
-        myWriter.println(line);
-        myWriter.flush();
+        if (myOutputFill > 0) {
+            final int length = myOutputFill;
+            myOutputFill = 0;
+            try {
+                myTransport.write(myOutput, 0, length);
+            }
+            catch (IOException e) {
+                throw connectionLost(e);
+            }
+        }
     }
     
     public void stop()
         throws Exception
     {
-        if (myPrometheusServer != null) {
-            System.err.println("Stopping HTTP server");
-            myPrometheusServer.stop();
+        myTransport.close();
+        if (myMetrics != null && myOwnsMetrics) {
+            myMetrics.stop();
         }
     }
     
     public void doWait()
         throws IOException, ProtocolException
+    {
+        beginWait();
+        endWait();
+    }
+
+    /**
+     * Send WAIT and return the number of seconds the server says are left until the next turn. The
+     * caller is free to do other work before calling {@link #endWait}, but must not send anything
+     * else in between.
+     */
+    public double beginWait()
+        throws IOException, ProtocolException
     {
         writeCommand("WAIT");
         
         // Now consume one line of the form "WAITING <time>"
         String[] parts = readLine("WAITING [0-9.]+").split(" ");
-        System.err.println("Waiting " + Double.parseDouble(parts[1]) + " for next turn");
+        double seconds = Double.parseDouble(parts[1]);
+        System.err.println("Waiting " + seconds + " for next turn");
+        return seconds;
+    }
+
+    /**
+     * Block until the turn started by {@link #beginWait} is over.
+     */
+    public void endWait()
+        throws IOException, ProtocolException
+    {
         readOk();
         commandsUsed = 0;
+        myBudgetExhausted = false;
     }
     
     public void logPrometheusSummary(String name, double value)
     {
-        if (mySummaries != null) {
-            final Summary summary = mySummaries.computeIfAbsent(
-                "user_" + name,
-                c -> Summary.build()
-                            .name("user_" + name)
-                            .help("user var " + name).register(registry)
-            );
+        if (myMetrics != null) {
+            Summary.Child summary = mySummaries.get(name);
+            if (summary == null) {
+                summary = myMetrics.summary(name).labels(appName);
+                mySummaries.put(name, summary);
+            }
             summary.observe(value);
         }
     }
+
+    /**
+     * Record the time taken by a phase of the turn, such as reading the world or one part of the
+     * strategy.
+     */
+    public void logPhaseTime(String phase, double seconds)
+    {
+        if (myMetrics != null) {
+            Histogram.Child time = myPhaseTimes.get(phase);
+            if (time == null) {
+                time = myMetrics.phaseTime.labels(appName, phase);
+                myPhaseTimes.put(phase, time);
+            }
+            time.observe(seconds);
+        }
+    }
+
+    public void countSearchedCells(long cells)
+    {
+        if (myMetrics != null && cells > 0) {
+            mySearchedCellCount.inc(cells);
+        }
+    }
+
+    public void countAllocatedBytes(long bytes)
+    {
+        if (myMetrics != null && bytes > 0) {
+            myAllocatedByteCount.inc(bytes);
+        }
+    }
     
     public int getCommandsUsed()
     {
@@ -0,0 +1,99 @@
+package dl24;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A family of series sharing a name, with one child per combination of label values, written out in
+ * the Prometheus text format. Children are made the first time they are asked for and then kept, so
+ * callers look them up once and after that update them directly.
+ */
+abstract class Collector<C>
+{
+    private final String myName;
+    private final String myHelp;
+    private final String[] myLabelNames;
+    private final Map<List<String>,C> myChildren = new ConcurrentHashMap<>();
+
+    Collector(String name, String help, String... labelNames)
+    {
+        myName = name;
+        myHelp = help;
+        myLabelNames = labelNames;
+    }
+
+    public String getName()
+    {
+        return myName;
+    }
+
+    public C labels(String... values)
+    {
+        if (values.length != myLabelNames.length) {
+            throw new IllegalArgumentException(myName + " takes " + myLabelNames.length + " label values, not " + values.length);
+        }
+        return myChildren.computeIfAbsent(Arrays.asList(values.clone()), v -> newChild());
+    }
+
+    abstract C newChild();
+
+    abstract String type();
+
+    /**
+     * Write the samples for one child, whose labels are already rendered as {@code a="x",b="y"}.
+     */
+    abstract void write(StringBuilder out, String labels, C child);
+
+    void write(StringBuilder out)
+    {
+        out.append("# HELP ").append(myName).append(' ').append(myHelp.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        out.append("# TYPE ").append(myName).append(' ').append(type()).append('\n');
+        final StringBuilder labels = new StringBuilder();
+        for (Map.Entry<List<String>,C> entry : myChildren.entrySet()) {
+            labels.setLength(0);
+            final List<String> values = entry.getKey();
+            for (int i = 0; i < myLabelNames.length; i++) {
+                if (i > 0) {
+                    labels.append(',');
+                }
+                labels.append(myLabelNames[i]).append("=\"");
+                final String value = values.get(i);
+                for (int j = 0; j < value.length(); j++) {
+                    final char c = value.charAt(j);
+                    if (c == '\\' || c == '"') {
+                        labels.append('\\').append(c);
+                    }
+                    else if (c == '\n') {
+                        labels.append("\\n");
+                    }
+                    else {
+                        labels.append(c);
+                    }
+                }
+                labels.append('"');
+            }
+            write(out, labels.toString(), entry.getValue());
+        }
+    }
+
+    static void sample(StringBuilder out, String name, String labels, String value)
+    {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    static String format(double value)
+    {
+        if (value == Double.POSITIVE_INFINITY) {
+            return "+Inf";
+        }
+        if (value == Double.NEGATIVE_INFINITY) {
+            return "-Inf";
+        }
+        return Double.toString(value);
+    }
+}
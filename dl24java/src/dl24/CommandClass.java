@@ -0,0 +1,28 @@
+package dl24;
+
+/**
+ * Priority of a command when the per-turn command limit is tight, lowest first. Queued commands of
+ * a lower class are dropped to make room for those of a higher one.
+ */
+public enum CommandClass
+{
+    MOVE,
+    PUT,
+    SCORE,
+    // Queries and the like, which the game loop cannot do without.
+    OTHER;
+
+    static CommandClass of(String command)
+    {
+        switch (command) {
+        case "MOVE":
+            return MOVE;
+        case "PUT":
+            return PUT;
+        case "SCORE":
+            return SCORE;
+        default:
+            return OTHER;
+        }
+    }
+}
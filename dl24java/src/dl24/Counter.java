@@ -0,0 +1,52 @@
+package dl24;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up. Each child is a LongAdder, so threads bumping the same one don't
+ * contend on a single word.
+ */
+public class Counter extends Collector<Counter.Child>
+{
+    public static class Child
+    {
+        private final LongAdder myValue = new LongAdder();
+
+        public void inc()
+        {
+            myValue.increment();
+        }
+
+        public void inc(long amount)
+        {
+            myValue.add(amount);
+        }
+
+        public long get()
+        {
+            return myValue.sum();
+        }
+    }
+
+    Counter(String name, String help, String... labelNames)
+    {
+        super(name, help, labelNames);
+    }
+
+    @Override
+    Child newChild()
+    {
+        return new Child();
+    }
+
+    @Override
+    String type()
+    {
+        return "counter";
+    }
+
+    @Override
+    void write(StringBuilder out, String labels, Child child)
+    {
+        sample(out, getName(), labels, Long.toString(child.get()));
+    }
+}
@@ -0,0 +1,141 @@
+package dl24;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single selector thread shared by any number of non-blocking {@link ChannelTransport}s. A
+ * transport that cannot make progress parks its calling thread until the selector reports the
+ * channel ready, so several game sessions can share one I/O thread instead of each blocking in a
+ * socket read of its own. Only the socket polling is shared: each session still has a thread of its
+ * own, parked while it waits, because the strategies are written as ordinary blocking loops. With
+ * platform threads that is one parked thread per session; run the sessions on virtual threads if
+ * that matters.
+ */
+public class EventLoop
+{
+    /**
+     * Per-channel parking slot; owned by a single transport and reused for every wait.
+     */
+    static class Waiter
+    {
+        final SelectableChannel channel;
+        SelectionKey key;
+        int ops;
+        volatile Thread thread;
+        volatile boolean ready;
+
+        Waiter(SelectableChannel channel)
+        {
+            this.channel = channel;
+        }
+    }
+
+    private final Selector mySelector;
+    private final Thread myThread;
+    private final Queue<Waiter> myRequests = new ConcurrentLinkedQueue<>();
+    private volatile boolean myRunning = true;
+
+    public EventLoop(String name)
+        throws IOException
+    {
+        mySelector = Selector.open();
+        myThread = new Thread(this::loop, name);
+        myThread.setDaemon(true);
+        myThread.start();
+    }
+
+    /**
+     * Block the calling thread until the waiter's channel is ready for the given operations.
+     */
+    void await(Waiter waiter, int ops)
+        throws IOException
+    {
+        if (!myRunning) {
+            throw new IOException("Event loop has been shut down");
+        }
+        waiter.ops = ops;
+        waiter.ready = false;
+        waiter.thread = Thread.currentThread();
+        myRequests.add(waiter);
+        mySelector.wakeup();
+        while (!waiter.ready) {
+            LockSupport.park(this);
+            if (!myRunning) {
+                throw new IOException("Event loop has been shut down");
+            }
+            if (Thread.interrupted()) {
+                throw new IOException("Interrupted while waiting for " + waiter.channel);
+            }
+        }
+    }
+
+    private void loop()
+    {
+        try {
+            while (myRunning) {
+                // Interest changes are applied here so that they never race with select().
+                Waiter waiter;
+                while ((waiter = myRequests.poll()) != null) {
+                    try {
+                        if (waiter.key == null) {
+                            waiter.key = waiter.channel.register(mySelector, waiter.ops, waiter);
+                        }
+                        else {
+                            waiter.key.interestOps(waiter.ops);
+                        }
+                    }
+                    catch (Exception e) {
+                        // Let the waiter retry its I/O, which will surface the real error.
+                        wake(waiter);
+                    }
+                }
+
+                mySelector.select();
+                final Iterator<SelectionKey> it = mySelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid()) {
+                        key.interestOps(0);
+                    }
+                    wake((Waiter) key.attachment());
+                }
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Event loop failed: " + e);
+        }
+        finally {
+            myRunning = false;
+            for (SelectionKey key : mySelector.keys()) {
+                wake((Waiter) key.attachment());
+            }
+            Waiter waiter;
+            while ((waiter = myRequests.poll()) != null) {
+                wake(waiter);
+            }
+        }
+    }
+
+    private static void wake(Waiter waiter)
+    {
+        waiter.ready = true;
+        final Thread thread = waiter.thread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public void stop()
+        throws IOException
+    {
+        myRunning = false;
+        mySelector.wakeup();
+    }
+}
@@ -0,0 +1,72 @@
+package dl24;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled form of an expected-line regex passed to {@link Client#readLine(String)}. Fixed tokens
+ * such as "OK" are compared byte for byte; anything else is matched with a Matcher that is reset
+ * for every line, so neither path compiles or allocates per call. Not thread-safe: each client
+ * keeps its own.
+ */
+class Expectation
+{
+    private static final String METACHARACTERS = "\\[](){}.*+?^$|";
+
+    private final String myRegex;
+    private final String myLiteral;
+    private final Matcher myMatcher;
+
+    Expectation(String regex)
+    {
+        myRegex = regex;
+        if (isLiteral(regex)) {
+            myLiteral = regex;
+            myMatcher = null;
+        }
+        else {
+            myLiteral = null;
+            myMatcher = Pattern.compile(regex).matcher("");
+        }
+    }
+
+    private static boolean isLiteral(String regex)
+    {
+        for (int i = 0; i < regex.length(); i++) {
+            if (METACHARACTERS.indexOf(regex.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String getRegex()
+    {
+        return myRegex;
+    }
+
+    /**
+     * The exact line this expectation accepts, or null if it is a real regex.
+     */
+    String getLiteral()
+    {
+        return myLiteral;
+    }
+
+    boolean matches(LineReader line)
+    {
+        if (myLiteral != null) {
+            if (line.length() != myLiteral.length()) {
+                return false;
+            }
+            for (int i = 0; i < myLiteral.length(); i++) {
+                if (line.charAt(i) != myLiteral.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        else {
+            return myMatcher.reset(line).matches();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package dl24;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Observations counted into buckets by upper bound, plus their total. Each bucket is counted on its
+ * own and the running totals that Prometheus expects are only formed when the series are written.
+ */
+public class Histogram extends Collector<Histogram.Child>
+{
+    // Prometheus's default buckets, in seconds, which suit network round trips.
+    static final double[] DEFAULT_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.075, 0.1, 0.25, 0.5, 0.75, 1, 2.5, 5, 7.5, 10};
+
+    // Upper bounds in increasing order; the last bucket, +Inf, is implied.
+    private final double[] myBounds;
+
+    public class Child
+    {
+        private final LongAdder[] myCounts = new LongAdder[myBounds.length + 1];
+        private final DoubleAdder mySum = new DoubleAdder();
+
+        Child()
+        {
+            for (int i = 0; i < myCounts.length; i++) {
+                myCounts[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value)
+        {
+            int i = 0;
+            while (i < myBounds.length && value > myBounds[i]) {
+                i++;
+            }
+            myCounts[i].increment();
+            mySum.add(value);
+        }
+    }
+
+    Histogram(String name, String help, double[] bounds, String... labelNames)
+    {
+        super(name, help, labelNames);
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Buckets for " + name + " must be in increasing order");
+            }
+        }
+        myBounds = bounds.clone();
+    }
+
+    @Override
+    Child newChild()
+    {
+        return new Child();
+    }
+
+    @Override
+    String type()
+    {
+        return "histogram";
+    }
+
+    @Override
+    void write(StringBuilder out, String labels, Child child)
+    {
+        final String prefix = labels.isEmpty() ? "le=\"" : labels + ",le=\"";
+        long count = 0;
+        for (int i = 0; i < child.myCounts.length; i++) {
+            count += child.myCounts[i].sum();
+            final double bound = i < myBounds.length ? myBounds[i] : Double.POSITIVE_INFINITY;
+            sample(out, getName() + "_bucket", prefix + format(bound) + '"', Long.toString(count));
+        }
+        sample(out, getName() + "_count", labels, Long.toString(count));
+        sample(out, getName() + "_sum", labels, format(child.mySum.sum()));
+    }
+}
@@ -0,0 +1,250 @@
+package dl24;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Line-at-a-time reader for the ASCII protocol. Lines are kept in a reusable byte buffer and
+ * tokenised in place, so parsing a reply allocates nothing unless the caller asks for a String.
+ * As a CharSequence it views the current line, which lets regexes run without copying it.
+ */
+public class LineReader
+    implements CharSequence
+{
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Transport myInput;
+    private byte[] myBuffer = new byte[1 << 16];
+
+    // Bytes [myLineEnd + 1, myFill) have been read from the stream but not yet consumed.
+    private int myFill = 0;
+    private int myLineStart = 0;
+    private int myLineEnd = -1;
+    private int myPos = 0;
+
+    public LineReader(Transport input)
+    {
+        myInput = input;
+    }
+
+    /**
+     * Advance to the next line, blocking until it is complete. Throws {@link EOFException} if the
+     * stream ends before any more data arrives.
+     */
+    public void nextLine()
+        throws IOException
+    {
+        int start = myLineEnd + 1;
+        int scan = start;
+        while (true) {
+            for (; scan < myFill; scan++) {
+                if (myBuffer[scan] == '\n') {
+                    setLine(start, scan);
+                    return;
+                }
+            }
+
+            // Need more data. Shift the partial line to the front of the buffer, or grow it if the
+            // partial line already fills the buffer.
+            if (start > 0) {
+                System.arraycopy(myBuffer, start, myBuffer, 0, myFill - start);
+                myFill -= start;
+                scan -= start;
+                start = 0;
+                myLineEnd = -1;
+            }
+            if (myFill == myBuffer.length) {
+                byte[] bigger = new byte[myBuffer.length * 2];
+                System.arraycopy(myBuffer, 0, bigger, 0, myFill);
+                myBuffer = bigger;
+            }
+            final int n = myInput.read(myBuffer, myFill, myBuffer.length - myFill);
+            if (n < 0) {
+                if (myFill > start) {
+                    // Unterminated last line.
+                    myBuffer[myFill] = '\n';
+                    setLine(start, myFill++);
+                    return;
+                }
+                throw new EOFException();
+            }
+            myFill += n;
+        }
+    }
+
+    private void setLine(int start, int newline)
+    {
+        myLineStart = start;
+        myLineEnd = newline;
+        myPos = start;
+    }
+
+    private int lineLimit()
+    {
+        // Ignore a trailing carriage return.
+        if (myLineEnd > myLineStart && myBuffer[myLineEnd - 1] == '\r') {
+            return myLineEnd - 1;
+        }
+        return myLineEnd;
+    }
+
+    public int length()
+    {
+        return lineLimit() - myLineStart;
+    }
+
+    public char charAt(int index)
+    {
+        return (char) (myBuffer[myLineStart + index] & 0xff);
+    }
+
+    public CharSequence subSequence(int start, int end)
+    {
+        return lineString().substring(start, end);
+    }
+
+    public String toString()
+    {
+        return lineString();
+    }
+
+    public String lineString()
+    {
+        final int length = length();
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = charAt(i);
+        }
+        return new String(chars);
+    }
+
+    private void skipSpaces()
+    {
+        final int limit = lineLimit();
+        while (myPos < limit && (myBuffer[myPos] == ' ' || myBuffer[myPos] == '\t')) {
+            myPos++;
+        }
+    }
+
+    private int tokenEnd(int from)
+    {
+        final int limit = lineLimit();
+        int end = from;
+        while (end < limit && myBuffer[end] != ' ' && myBuffer[end] != '\t') {
+            end++;
+        }
+        return end;
+    }
+
+    public boolean hasNext()
+    {
+        skipSpaces();
+        return myPos < lineLimit();
+    }
+
+    public boolean hasNextInt()
+    {
+        if (!hasNext()) {
+            return false;
+        }
+        int p = myPos;
+        final int end = tokenEnd(p);
+        if (myBuffer[p] == '-' || myBuffer[p] == '+') {
+            p++;
+        }
+        if (p == end) {
+            return false;
+        }
+        for (; p < end; p++) {
+            if (myBuffer[p] < '0' || myBuffer[p] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int nextInt()
+    {
+        if (!hasNextInt()) {
+            throw new ProtocolException("Expected an integer but got '" + lineString() + "'");
+        }
+        boolean negative = false;
+        if (myBuffer[myPos] == '-' || myBuffer[myPos] == '+') {
+            negative = myBuffer[myPos] == '-';
+            myPos++;
+        }
+        final int end = tokenEnd(myPos);
+        int value = 0;
+        for (; myPos < end; myPos++) {
+            value = value * 10 + (myBuffer[myPos] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    public double nextDouble()
+    {
+        if (!hasNext()) {
+            throw new ProtocolException("Expected a number but got '" + lineString() + "'");
+        }
+        final int start = myPos;
+        final int end = tokenEnd(start);
+        int p = start;
+        boolean negative = false;
+        if (myBuffer[p] == '-' || myBuffer[p] == '+') {
+            negative = myBuffer[p] == '-';
+            p++;
+        }
+        long mantissa = 0;
+        int digits = 0, scale = 0;
+        boolean point = false, simple = p < end;
+        for (; p < end && simple; p++) {
+            final byte b = myBuffer[p];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (point) {
+                    scale++;
+                }
+            }
+            else if (b == '.' && !point) {
+                point = true;
+            }
+            else {
+                simple = false;
+            }
+        }
+        myPos = end;
+        if (simple && digits > 0 && digits <= 15 && scale < POWERS_OF_TEN.length) {
+            // Both operands are exact, so the division is correctly rounded.
+            final double value = mantissa / POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+
+        // Exponents, very long mantissas and the like: defer to the JDK.
+        final char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) myBuffer[start + i];
+        }
+        try {
+            return Double.parseDouble(new String(chars));
+        }
+        catch (NumberFormatException e) {
+            throw new ProtocolException("Expected a number but got '" + new String(chars) + "'", e);
+        }
+    }
+
+    /**
+     * Return the first character of the next token and skip the rest of it.
+     */
+    public char nextChar()
+    {
+        if (!hasNext()) {
+            throw new ProtocolException("Expected a token but got '" + lineString() + "'");
+        }
+        final char c = (char) (myBuffer[myPos] & 0xff);
+        myPos = tokenEnd(myPos);
+        return c;
+    }
+}
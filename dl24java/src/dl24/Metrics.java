@@ -0,0 +1,117 @@
+package dl24;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Our metrics plus the HTTP endpoint that serves them to Prometheus. One instance can be shared by
+ * several clients in the same JVM; every series carries a {@code game} label holding the client's
+ * app name.
+ */
+public class Metrics
+{
+    private final List<Collector<?>> myCollectors = new CopyOnWriteArrayList<>();
+    private final HttpServer myPrometheusServer;
+    private final ExecutorService myExecutor;
+
+    final Histogram commandTime;
+    final Counter protocolMismatches;
+    final Counter budgetExhausted;
+    final Counter commandsDropped;
+    final Counter reconnects;
+    final Histogram phaseTime;
+    final Counter searchedCells;
+    final Counter allocatedBytes;
+
+    private final Map<String,Summary> mySummaries = new ConcurrentHashMap<>();
+
+    public Metrics(int prometheusPort)
+        throws IOException
+    {
+        this(prometheusPort, false);
+    }
+
+    /**
+     * @param virtualThreads serve requests on virtual threads where the JVM allows it
+     */
+    public Metrics(int prometheusPort, boolean virtualThreads)
+        throws IOException
+    {
+        // Create our per-command metrics.
+        commandTime = register(new Histogram("dl24_command_time_seconds", "Time between issuing command and receiving reply", Histogram.DEFAULT_BUCKETS, "game", "command"));
+        protocolMismatches = register(new Counter("dl24_protocol_mismatch_total", "Lines that did not match the expected reply", "game", "expected"));
+        budgetExhausted = register(new Counter("dl24_command_budget_exhausted_total", "Turns in which the command limit turned commands away", "game"));
+        commandsDropped = register(new Counter("dl24_commands_dropped_total", "Queued commands dropped to stay within the command limit", "game", "class"));
+        reconnects = register(new Counter("dl24_reconnects_total", "Times the connection was lost and re-established", "game"));
+
+        // And the per-turn ones the strategies report. Phases run from well under a millisecond up
+        // to the whole turn, hence the finer buckets.
+        phaseTime = register(new Histogram("dl24_phase_time_seconds", "Time spent in each phase of a turn",
+                                           new double[] {0.0001, 0.0003, 0.001, 0.003, 0.01, 0.03, 0.1, 0.3, 1, 3}, "game", "phase"));
+        searchedCells = register(new Counter("dl24_bfs_cells_total", "Cells visited by breadth-first searches", "game"));
+        allocatedBytes = register(new Counter("dl24_allocated_bytes_total", "Bytes allocated by the game thread", "game"));
+
+        // Start an HTTP server to expose them. Scrapes are rare, so without virtual threads they are
+        // simply handled on the server's own thread.
+        myPrometheusServer = HttpServer.create(new InetSocketAddress(prometheusPort), 0);
+        myPrometheusServer.createContext("/metrics", this::serve);
+        myExecutor = virtualThreads ? Threads.newPerTaskExecutor(true) : null;
+        myPrometheusServer.setExecutor(myExecutor);
+        myPrometheusServer.start();
+    }
+
+    private <C extends Collector<?>> C register(C collector)
+    {
+        myCollectors.add(collector);
+        return collector;
+    }
+
+    private void serve(HttpExchange exchange)
+        throws IOException
+    {
+        try {
+            final StringBuilder text = new StringBuilder(8192);
+            for (Collector<?> collector : myCollectors) {
+                collector.write(text);
+            }
+            final byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+            }
+            else {
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    Summary summary(String name)
+    {
+        return mySummaries.computeIfAbsent(name, n -> register(new Summary("user_" + n, "user var " + n, "game")));
+    }
+
+    public void stop()
+        throws Exception
+    {
+        System.err.println("Stopping HTTP server");
+        myPrometheusServer.stop(0);
+        if (myExecutor != null) {
+            myExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package dl24;
+import java.io.IOException;
+
+/**
+ * Thrown by {@link Client} in place of the I/O error that broke its connection, once it has
+ * connected and logged in again. Anything in flight was lost with the old connection, so the
+ * caller should re-read whatever game state it depends on before carrying on.
+ */
+public class ReconnectedException
+    extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    public ReconnectedException(IOException cause)
+    {
+        super("Reconnected after: " + cause, cause);
+    }
+}
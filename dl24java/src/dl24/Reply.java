@@ -0,0 +1,84 @@
+package dl24;
+
+/**
+ * Outcome of a command issued with {@link Client#queueCommand}. It is filled in by
+ * {@link Client#flushCommands}, and the slot is recycled by the first command queued after that,
+ * so callers must inspect it before starting the next batch.
+ */
+public class Reply
+{
+    private String command;
+    private boolean done;
+    private ProtocolException error;
+
+    // Where the round-trip time is recorded, or null without metrics.
+    Histogram.Child time;
+
+    CommandClass commandClass;
+    // Offset of the command's bytes in the client's output buffer while it is queued.
+    int start;
+    private boolean dropped;
+
+    void reset(String command, CommandClass commandClass, Histogram.Child time, int start)
+    {
+        this.command = command;
+        this.commandClass = commandClass;
+        this.time = time;
+        this.start = start;
+        dropped = false;
+        done = false;
+        error = null;
+    }
+
+    void complete(ProtocolException error)
+    {
+        this.error = error;
+        done = true;
+    }
+
+    void drop()
+    {
+        complete(new ProtocolException(command + " dropped: over the command limit"));
+        dropped = true;
+    }
+
+    public String getCommand()
+    {
+        return command;
+    }
+
+    public boolean isDone()
+    {
+        return done;
+    }
+
+    public boolean isOk()
+    {
+        return done && error == null;
+    }
+
+    /**
+     * True if the command was never sent because the turn's command limit was needed for
+     * higher-priority commands.
+     */
+    public boolean isDropped()
+    {
+        return dropped;
+    }
+
+    public ProtocolException getError()
+    {
+        return error;
+    }
+
+    public void check()
+        throws ProtocolException
+    {
+        if (!done) {
+            throw new IllegalStateException("Reply to " + command + " has not been read yet");
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
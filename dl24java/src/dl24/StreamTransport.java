@@ -0,0 +1,58 @@
+package dl24;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Transport over a blocking {@link Socket} (or any pair of streams). Unlike a PrintWriter, write
+ * errors are thrown rather than swallowed.
+ */
+public class StreamTransport
+    implements Transport
+{
+    private final Socket mySocket;
+    private final InputStream myInput;
+    private final OutputStream myOutput;
+
+    public StreamTransport(String host, int port)
+        throws IOException
+    {
+        mySocket = new Socket(host, port);
+        mySocket.setTcpNoDelay(true);
+        myInput = mySocket.getInputStream();
+        myOutput = mySocket.getOutputStream();
+    }
+
+    public StreamTransport(InputStream input, OutputStream output)
+    {
+        mySocket = null;
+        myInput = input;
+        myOutput = output;
+    }
+
+    public int read(byte[] buffer, int offset, int length)
+        throws IOException
+    {
+        return myInput.read(buffer, offset, length);
+    }
+
+    public void write(byte[] buffer, int offset, int length)
+        throws IOException
+    {
+        myOutput.write(buffer, offset, length);
+        myOutput.flush();
+    }
+
+    public void close()
+        throws IOException
+    {
+        if (mySocket != null) {
+            mySocket.close();
+        }
+        else {
+            myInput.close();
+            myOutput.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package dl24;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The number and total of some observations, without quantiles.
+ */
+public class Summary extends Collector<Summary.Child>
+{
+    public static class Child
+    {
+        private final LongAdder myCount = new LongAdder();
+        private final DoubleAdder mySum = new DoubleAdder();
+
+        public void observe(double value)
+        {
+            myCount.increment();
+            mySum.add(value);
+        }
+    }
+
+    Summary(String name, String help, String... labelNames)
+    {
+        super(name, help, labelNames);
+    }
+
+    @Override
+    Child newChild()
+    {
+        return new Child();
+    }
+
+    @Override
+    String type()
+    {
+        return "summary";
+    }
+
+    @Override
+    void write(StringBuilder out, String labels, Child child)
+    {
+        sample(out, getName() + "_count", labels, Long.toString(child.myCount.sum()));
+        sample(out, getName() + "_sum", labels, format(child.mySum.sum()));
+    }
+}
@@ -0,0 +1,84 @@
+package dl24;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Choice between platform and virtual threads for game sessions and the metrics endpoint. Virtual
+ * threads are looked up reflectively so that this still builds and runs on JDKs without them, in
+ * which case we fall back to ordinary threads.
+ */
+public class Threads
+{
+    private static final ThreadFactory VIRTUAL_FACTORY = lookupVirtualFactory();
+
+    private static ThreadFactory lookupVirtualFactory()
+    {
+        try {
+            // Thread.ofVirtual().name("dl24-", 0).factory(), through the public Thread.Builder
+            // interface; the builder's own class is internal to java.base.
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Method name = builderClass.getMethod("name", String.class, long.class);
+            final Method factory = builderClass.getMethod("factory");
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) factory.invoke(name.invoke(builder, "dl24-", 0L));
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * True if the {@code dl24.threads} system property asks for virtual threads.
+     */
+    public static boolean virtualRequested()
+    {
+        return "virtual".equals(System.getProperty("dl24.threads"));
+    }
+
+    public static boolean virtualAvailable()
+    {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * Factory for session threads: virtual if requested and supported, platform otherwise.
+     */
+    public static ThreadFactory factory(boolean virtual)
+    {
+        if (virtual && VIRTUAL_FACTORY != null) {
+            return VIRTUAL_FACTORY;
+        }
+        if (virtual) {
+            System.err.println("Virtual threads are not available on this JVM; using platform threads");
+        }
+        return Executors.defaultThreadFactory();
+    }
+
+    /**
+     * An executor that starts a new thread per task, which with virtual threads is the intended way to
+     * run blocking work without sizing a pool.
+     */
+    public static ExecutorService newPerTaskExecutor(boolean virtual)
+    {
+        final ThreadFactory factory = factory(virtual);
+        if (factory == VIRTUAL_FACTORY) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+            }
+            catch (ReflectiveOperationException e) {
+                // Fall through to a cached pool, which still runs the tasks on virtual threads.
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    public static Thread start(String name, boolean virtual, Runnable task)
+    {
+        final Thread thread = factory(virtual).newThread(task);
+        thread.setName(name);
+        thread.start();
+        return thread;
+    }
+}
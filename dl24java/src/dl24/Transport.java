@@ -0,0 +1,34 @@
+package dl24;
+import java.io.IOException;
+
+/**
+ * Byte pipe to the game server. The client does its own line framing and buffering on top, so
+ * implementations only need to move bytes and must report every failure as an IOException.
+ */
+public interface Transport
+{
+    /**
+     * Read up to {@code length} bytes, blocking until at least one is available. Returns -1 at end
+     * of stream.
+     */
+    int read(byte[] buffer, int offset, int length)
+        throws IOException;
+
+    /**
+     * Write all of the given bytes to the server.
+     */
+    void write(byte[] buffer, int offset, int length)
+        throws IOException;
+
+    void close()
+        throws IOException;
+
+    /**
+     * Opens a new connection to the same place, so that a client can reconnect.
+     */
+    interface Factory
+    {
+        Transport open()
+            throws IOException;
+    }
+}
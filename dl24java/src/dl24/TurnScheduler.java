@@ -0,0 +1,95 @@
+package dl24;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the time spent in WAIT into something useful. Work registered with {@link #duringWait} is
+ * run after the server has told us how long the turn has left and before we block for its end, so
+ * it costs nothing as long as it fits. Everything runs on the caller's thread, so the work may use
+ * the same state as the strategy without any locking; it is simply finished before
+ * {@link #awaitTurn} returns.
+ */
+public class TurnScheduler
+{
+    private final Client myClient;
+    private final List<Runnable> myTasks = new ArrayList<>();
+
+    // System.nanoTime() at which the current turn is expected to end.
+    private long myDeadline;
+    private long myTurnStart;
+    private long myTurnLength;
+    private double myLastWaitSeconds;
+
+    public TurnScheduler(Client client)
+    {
+        myClient = client;
+        myTurnStart = System.nanoTime();
+    }
+
+    /**
+     * Run a task during the next wait only. Tasks run in the order they were added, and can use
+     * {@link #remainingSeconds} to decide whether there is time for optional work.
+     */
+    public void duringWait(Runnable task)
+    {
+        myTasks.add(task);
+    }
+
+    /**
+     * WAIT for the next turn, running the registered tasks while the server holds the turn open.
+     * Returns the time the server reported as left in the turn.
+     */
+    public double awaitTurn()
+        throws IOException, ProtocolException
+    {
+        try {
+            myLastWaitSeconds = myClient.beginWait();
+            myDeadline = System.nanoTime() + (long) (myLastWaitSeconds * 1e9);
+            for (int i = 0; i < myTasks.size(); i++) {
+                myTasks.get(i).run();
+            }
+        }
+        finally {
+            myTasks.clear();
+        }
+        final double overrun = -remainingSeconds(System.nanoTime());
+        if (overrun > 0) {
+            System.err.println("Work during wait overran the turn by " + overrun + "s");
+        }
+        myClient.endWait();
+
+        final long now = System.nanoTime();
+        myTurnLength = now - myTurnStart;
+        myTurnStart = now;
+        myDeadline = now + myTurnLength;
+        return myLastWaitSeconds;
+    }
+
+    /**
+     * Seconds left before the turn ends. While waiting this comes from the server's WAITING reply;
+     * otherwise it is estimated from the length of the previous turn. Never negative.
+     */
+    public double remainingSeconds()
+    {
+        return Math.max(0, remainingSeconds(System.nanoTime()));
+    }
+
+    private double remainingSeconds(long now)
+    {
+        return (myDeadline - now) / 1e9;
+    }
+
+    public double getLastWaitSeconds()
+    {
+        return myLastWaitSeconds;
+    }
+
+    /**
+     * Duration of the last complete turn as seen by us, in seconds, or 0 before the first one.
+     */
+    public double getTurnSeconds()
+    {
+        return myTurnLength / 1e9;
+    }
+}
@@ -0,0 +1,33 @@
+package dl24.test;
+import java.util.concurrent.ThreadFactory;
+
+import dl24.Threads;
+
+/**
+ * Checks that virtual threads are picked up on a JVM that has them, JDK 21 onwards, and that the
+ * factory then really makes them.
+ */
+public class ThreadsTest
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        // "1.8" up to Java 8, then just the feature release.
+        final String version = System.getProperty("java.specification.version");
+        final int feature = Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+        if (feature >= 21 && !Threads.virtualAvailable()) {
+            throw new AssertionError("Virtual threads not found on JDK " + feature);
+        }
+        if (Threads.virtualAvailable()) {
+            final ThreadFactory factory = Threads.factory(true);
+            final Thread thread = factory.newThread(() -> { });
+            if (!(Boolean) Thread.class.getMethod("isVirtual").invoke(thread)) {
+                throw new AssertionError("Factory made a platform thread " + thread);
+            }
+            if (!thread.getName().startsWith("dl24-")) {
+                throw new AssertionError("Unexpected thread name " + thread.getName());
+            }
+        }
+        System.err.println("Threads OK on JDK " + feature + ", virtual " + Threads.virtualAvailable());
+    }
+}